@@ -14,6 +14,16 @@ abstract public class Settings {
     public boolean takeover = false;
     public String unbindMethod = "console.getServerConnection.b";
 
+    // Netty transport: "auto" for native epoll where available, else "epoll" or "nio"
+    public String transport = "auto";
+    public int bossThreads = 1; // accepting connections
+    public int workerThreads = 0; // serving connections, 0 for Netty's default of twice the cores
+    public boolean shareEventLoop = false; // accept connections on the worker threads, instead of boss threads
+    public boolean tcpNoDelay = true;
+    public boolean reusePort = false; // with epoll, accept on each boss thread from its own socket on the same port
+    public int sendBufferSize = 0; // socket buffer sizes in bytes, 0 for the system default
+    public int receiveBufferSize = 0;
+
     public boolean debug = false;
     public boolean nettyLogInfo = false;
     public boolean usePermissions = false;
@@ -33,6 +43,9 @@ abstract public class Settings {
     // of this radius, +/-
     public int radius = 16;
 
+    // Additional areas web clients can choose to join instead of the one above
+    public List<Region> regions = new ArrayList<Region>();
+
     public boolean clickableLinks = true;
     public boolean clickableLinksTellraw = false;
 
@@ -48,6 +61,17 @@ abstract public class Settings {
     public boolean seeChat = true;
     public boolean seePlayers = true;
     public boolean seeTime = true;
+    public int viewDistance = 0; // blocks around each web client to send block and player updates from, 0 for all
+    public int movesPerSecond = 10; // most position updates applied per web client, the rest are skipped
+    public int commandBudgetMillis = 5; // main thread time each tick for commands from web clients, the rest wait
+    public int blockEditBudgetMillis = 10; // main thread time each tick for block changes from web clients
+
+    // Bytes queued to write to a web client before it is considered not keeping up, and again once it has
+    public int writeBufferHighWaterMark = 64 * 1024;
+    public int writeBufferLowWaterMark = 32 * 1024;
+    // Bytes of lines held back for a web client not keeping up before giving up on them, and what to do then
+    public int slowClientLimit = 1024 * 1024;
+    public String slowClientAction = "resync"; // or "disconnect"
     public boolean creativeMode = true;
 
     public Map<String, Object> blocksToWebOverride = new HashMap<String, Object>();
@@ -57,7 +81,34 @@ abstract public class Settings {
     public String textureURL = null;
     public File pluginDataFolder = null;
 
+    public static class Region {
+        public String name;
+        public String world;
+        public int x_center, y_center, z_center;
+        public int radius;
+
+        public Region(String name, String world, int x_center, int y_center, int z_center, int radius) {
+            this.name = name;
+            this.world = world;
+            this.x_center = x_center;
+            this.y_center = y_center;
+            this.z_center = z_center;
+            this.radius = radius;
+        }
+    }
+
+    public static final String DEFAULT_REGION = "default";
+
+    // All regions, the default region from world/x_center/y_center/z_center/radius first
+    public List<Region> getAllRegions() {
+        List<Region> allRegions = new ArrayList<Region>();
+        allRegions.add(new Region(DEFAULT_REGION, world, x_center, y_center, z_center, radius));
+        allRegions.addAll(regions);
+        return allRegions;
+    }
+
     // Implementation-defined utility methods
     abstract public void log(Level level, String message);
     abstract public void scheduleSyncTask(Runnable runnable);
+    abstract public void scheduleAsyncTask(Runnable runnable);
 }
@@ -1,10 +1,14 @@
 package io.github.satoshinm.WebSandboxMC.bridge;
 
 import io.github.satoshinm.WebSandboxMC.Settings;
+import io.github.satoshinm.WebSandboxMC.ws.OutboundMessage;
 import io.github.satoshinm.WebSandboxMC.ws.WebSocketServerThread;
-import io.netty.buffer.*;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.EventLoop;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
 import org.bukkit.*;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
@@ -12,18 +16,19 @@ import org.bukkit.block.BlockState;
 import org.bukkit.block.Sign;
 import org.bukkit.material.*;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.util.*;
 import java.util.logging.Level;
-import java.util.zip.DeflaterOutputStream;
 
 /**
- * Bridges blocks in the world, translates between coordinate systems
+ * Bridges blocks in one sandbox region of the world, translates between coordinate systems
  */
 public class BlockBridge {
 
     public WebSocketServerThread webSocketServerThread;
+    public final String name;
+    public final EventLoop eventLoop; // sends this region's lines to its web clients
+    public final ChannelGroup channelGroup; // web clients in this region
+    public final ClientViews clientViews; // what each web client in this region can see
     private final int x_center, y_center, z_center, y_offset;
     public final int radius;
     public final World world;
@@ -31,38 +36,49 @@ public class BlockBridge {
     private boolean allowBreakPlaceBlocks;
     private boolean allowSigns;
     private boolean seeTime;
-    private Map<Material, Integer> blocksToWeb;
     private int blocksToWebMissing; // unknown/unsupported becomes cloud, if key missing
     private boolean warnMissing;
-    private List<Material> unbreakableBlocks;
+
+    // Lookup tables built at startup, so translating a block is a single array load
+    private int[] webBlockTypes; // web block type, indexed by (material id << 4 | data)
+    private byte[] webLightLevels; // web light level, indexed by material id
+    private Material[] bukkitMaterials; // Bukkit material, indexed by web block type, null if untranslated
+    private MaterialData[] bukkitMaterialData; // Bukkit material data if any, indexed by web block type
+    private BitSet unbreakableBlocks; // indexed by material id
+    private BitSet blockStateBlocks; // indexed by material id, blocks needing more than their type and data (sign text)
+    private static final int WEB_BLOCK_TYPES = 256;
     private String textureURL;
     private boolean creativeMode;
 
-    public BlockBridge(WebSocketServerThread webSocketServerThread, Settings settings) {
+    public BlockBridge(WebSocketServerThread webSocketServerThread, Settings settings, Settings.Region region) {
         this.webSocketServerThread = webSocketServerThread;
 
-        this.radius = settings.radius;
+        this.name = region.name;
+        this.eventLoop = webSocketServerThread.nextEventLoop();
+        this.channelGroup = new DefaultChannelGroup(region.name, this.eventLoop);
+
+        this.radius = region.radius;
 
         this.y_offset = settings.y_offset;
 
-        if (settings.world == null || "".equals(settings.world)) {
+        if (region.world == null || "".equals(region.world)) {
             this.world = Bukkit.getWorlds().get(0);
         } else {
-            this.world = Bukkit.getWorld(settings.world);
+            this.world = Bukkit.getWorld(region.world);
         }
         if (this.world == null) {
-            throw new IllegalArgumentException("World not found: " + settings.world);
+            throw new IllegalArgumentException("World not found: " + region.world);
         }
 
-        if (settings.x_center == 0 && settings.y_center == 0 && settings.z_center == 0) {
+        if (region.x_center == 0 && region.y_center == 0 && region.z_center == 0) {
             Location spawn = this.world.getSpawnLocation();
             this.x_center = spawn.getBlockX();
             this.y_center = spawn.getBlockY();
             this.z_center = spawn.getBlockZ();
         } else {
-            this.x_center = settings.x_center;
-            this.y_center = settings.y_center;
-            this.z_center = settings.z_center;
+            this.x_center = region.x_center;
+            this.y_center = region.y_center;
+            this.z_center = region.z_center;
         }
 
         // TODO: configurable spawn within range of sandbox, right now, it is the center of the sandbox
@@ -72,7 +88,7 @@ public class BlockBridge {
         this.allowSigns = settings.allowSigns;
         this.seeTime = settings.seeTime;
 
-        this.blocksToWeb = new HashMap<Material, Integer>();
+        Map<Material, Integer> blocksToWeb = new HashMap<Material, Integer>();
         this.blocksToWebMissing = 16; // unknown/unsupported becomes cloud
 
         // Overrides from config, if any
@@ -100,28 +116,259 @@ public class BlockBridge {
                     continue;
                 }
 
-                this.blocksToWeb.put(material, n);
+                blocksToWeb.put(material, n);
                 this.webSocketServerThread.log(Level.FINEST, "blocks_to_web_override: " + material + " = " + n);
             }
         }
 
         this.warnMissing = settings.warnMissing;
 
-        this.unbreakableBlocks = new ArrayList<Material>();
+        this.unbreakableBlocks = new BitSet();
         for (String materialString : settings.unbreakableBlocks) {
             Material material = Material.getMaterial(materialString);
             if (material == null) {
                 webSocketServerThread.log(Level.WARNING, "unbreakable_blocks invalid material ignored: " + materialString);
                 continue;
             }
-            this.unbreakableBlocks.add(material);
+            this.unbreakableBlocks.set(material.getId());
         }
 
+        buildBlockTables(blocksToWeb);
+
         this.textureURL = settings.textureURL;
         this.creativeMode = settings.creativeMode;
+
+        this.clientViews = new ClientViews(webSocketServerThread, this, settings.viewDistance, radius * 2, y_offset,
+                settings.seePlayers);
+    }
+
+    private WorldSnapshot worldSnapshot; // null until the first scan completes
+    // Unbreakable blocks in the snapshot, to reject web clients breaking them on the Netty thread; null without a
+    // snapshot or while rescanning
+    private volatile UnbreakablePositions unbreakablePositions;
+    private final ClientBlockEdits clientBlockEdits = new ClientBlockEdits();
+    private boolean scanningWorldSnapshot;
+    private final Set<Integer> changedWhileScanning = new HashSet<Integer>(); // packed i,j,k of blocks to rescan
+    private final List<Channel> channelsAwaitingWorld = new ArrayList<Channel>();
+
+    // Start scanning the sandbox into a new snapshot: only the chunk snapshots are taken on the main thread,
+    // translating and compressing the blocks runs asynchronously, then the result is installed back on the main thread
+    private void scanWorldSnapshot() {
+        if (scanningWorldSnapshot) {
+            return;
+        }
+        scanningWorldSnapshot = true;
+        unbreakablePositions = null;
+
+        final int minChunkX = getMinChunkX();
+        final int minChunkZ = getMinChunkZ();
+        int maxChunkX = getMaxChunkX();
+        int maxChunkZ = getMaxChunkZ();
+
+        final ChunkSnapshot[][] chunkSnapshots = new ChunkSnapshot[maxChunkX - minChunkX + 1][maxChunkZ - minChunkZ + 1];
+        final Map<Integer, String> signCommands = new HashMap<Integer, String>();
+        for (int cx = minChunkX; cx <= maxChunkX; ++cx) {
+            for (int cz = minChunkZ; cz <= maxChunkZ; ++cz) {
+                Chunk chunk = world.getChunkAt(cx, cz);
+                chunkSnapshots[cx - minChunkX][cz - minChunkZ] = chunk.getChunkSnapshot(false, false, false);
+
+                // Sign text is not in the chunk snapshot, but they are tile entities so cheap to find here
+                for (BlockState blockState : chunk.getTileEntities()) {
+                    if (!(blockState instanceof Sign)) {
+                        continue;
+                    }
+                    Location location = blockState.getLocation();
+                    if (!withinSandboxRange(location)) {
+                        continue;
+                    }
+                    signCommands.put(packSnapshotPosition(location), getSignCommand(location, blockState));
+                }
+            }
+        }
+        final int maxHeight = world.getMaxHeight();
+
+        webSocketServerThread.scheduleAsyncTask(new Runnable() {
+            @Override
+            public void run() {
+                WorldSnapshot scanned = null;
+                int size = radius * 2;
+                final UnbreakablePositions unbreakable = new UnbreakablePositions(size * size * size);
+                try {
+                    scanned = new WorldSnapshot(radius * 2, y_offset);
+                    scanChunkSnapshots(scanned, unbreakable, chunkSnapshots, minChunkX, minChunkZ, maxHeight, signCommands);
+                } catch (RuntimeException ex) {
+                    ex.printStackTrace();
+                    if (scanned != null) {
+                        scanned.release();
+                    }
+                    webSocketServerThread.scheduleSyncTask(new Runnable() {
+                        @Override
+                        public void run() {
+                            scanWorldSnapshotFailed();
+                        }
+                    });
+                    return;
+                }
+
+                final WorldSnapshot snapshot = scanned;
+                webSocketServerThread.scheduleSyncTask(new Runnable() {
+                    @Override
+                    public void run() {
+                        installWorldSnapshot(snapshot, unbreakable);
+                    }
+                });
+            }
+        });
+    }
+
+    // Translate the chunk snapshots into the world snapshot and compress it, asynchronously
+    private void scanChunkSnapshots(WorldSnapshot snapshot, UnbreakablePositions unbreakable,
+                                    ChunkSnapshot[][] chunkSnapshots, int minChunkX, int minChunkZ, int maxHeight,
+                                    Map<Integer, String> signCommands) {
+        // Gather block data for multiblock update compression
+        for (int i = 0; i < radius * 2; ++i) {
+            int y = i - radius + y_center;
+            if (y < 0 || y >= maxHeight) {
+                continue; // air
+            }
+
+            for (int j = 0; j < radius * 2; ++j) {
+                int x = j - radius + x_center;
+
+                for (int k = 0; k < radius * 2; ++k) {
+                    int z = k - radius + z_center;
+
+                    ChunkSnapshot chunkSnapshot = chunkSnapshots[(x >> 4) - minChunkX][(z >> 4) - minChunkZ];
+                    int id = chunkSnapshot.getBlockTypeId(x & 15, y, z & 15);
+                    int data = chunkSnapshot.getBlockData(x & 15, y, z & 15);
+
+                    snapshot.setType(i, j, k, toWebBlockType(id, data));
+                    if (unbreakableBlocks.get(id)) {
+                        unbreakable.set((i * radius * 2 + j) * radius * 2 + k, Material.getMaterial(id));
+                    }
+
+                    // Gather light sources
+                    snapshot.setLightLevel(i, j, k, toWebLighting(id));
+                }
+            }
+        }
+
+        for (Map.Entry<Integer, String> entry : signCommands.entrySet()) {
+            int[] position = unpackSnapshotPosition(entry.getKey());
+            snapshot.setSignCommand(position[0], position[1], position[2], entry.getValue());
+        }
+
+        snapshot.compress();
     }
 
-    private final ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+    // The asynchronous part of a scan threw: clients waiting for the world are told to reconnect, and the next
+    // to join starts a new scan
+    private void scanWorldSnapshotFailed() {
+        webSocketServerThread.log(Level.WARNING, "failed to scan world snapshot of radius " + radius);
+
+        scanningWorldSnapshot = false;
+        changedWhileScanning.clear();
+
+        for (Channel channel : channelsAwaitingWorld) {
+            if (channel.isActive()) {
+                webSocketServerThread.sendLine(channel, "T,Failed to load the world, please reconnect");
+            }
+        }
+        channelsAwaitingWorld.clear();
+    }
+
+    private void installWorldSnapshot(WorldSnapshot snapshot, UnbreakablePositions unbreakable) {
+        webSocketServerThread.log(Level.FINEST, "scanned world snapshot of radius " + radius);
+
+        releaseWorldSnapshot();
+        worldSnapshot = snapshot;
+        scanningWorldSnapshot = false;
+        unbreakablePositions = unbreakable;
+
+        // Catch up with blocks changed after the chunk snapshots were taken
+        for (int packed : changedWhileScanning) {
+            int[] position = unpackSnapshotPosition(packed);
+            Block block = world.getBlockAt(position[1] - radius + x_center, position[0] - radius + y_center, position[2] - radius + z_center);
+            Material material = block.getType();
+            BlockState blockState = needsBlockState(material) ? block.getState() : null;
+
+            int type = toWebBlockType(material.getId(), block.getData());
+            updateWorldSnapshot(block.getLocation(), material, type, toWebLighting(material.getId()),
+                    getSignCommand(block.getLocation(), blockState));
+        }
+        changedWhileScanning.clear();
+
+        for (Channel channel : channelsAwaitingWorld) {
+            if (channel.isActive()) {
+                sendWorldSnapshot(channel, false);
+            }
+        }
+        channelsAwaitingWorld.clear();
+    }
+
+    // Pack offsets from the sandbox corner along y, x, z into one integer
+    private int packSnapshotPosition(Location location) {
+        int i = location.getBlockY() - y_center + radius;
+        int j = location.getBlockX() - x_center + radius;
+        int k = location.getBlockZ() - z_center + radius;
+        return (i * radius * 2 + j) * radius * 2 + k;
+    }
+
+    private int[] unpackSnapshotPosition(int packed) {
+        int size = radius * 2;
+        return new int[] { packed / size / size, packed / size % size, packed % size };
+    }
+
+    // Record a changed block in the world snapshot, if it was already scanned
+    private void updateWorldSnapshot(Location location, Material material, int type, int lightLevel, String signCommand) {
+        if (scanningWorldSnapshot) {
+            changedWhileScanning.add(packSnapshotPosition(location));
+            return;
+        }
+
+        if (worldSnapshot == null) {
+            return;
+        }
+
+        int i = location.getBlockY() - y_center + radius;
+        int j = location.getBlockX() - x_center + radius;
+        int k = location.getBlockZ() - z_center + radius;
+        worldSnapshot.setType(i, j, k, type);
+        worldSnapshot.setLightLevel(i, j, k, lightLevel);
+        worldSnapshot.setSignCommand(i, j, k, signCommand);
+
+        UnbreakablePositions unbreakable = unbreakablePositions;
+        if (unbreakable != null) {
+            int packed = packSnapshotPosition(location);
+            unbreakable.clear(packed);
+            if (isUnbreakable(material)) {
+                unbreakable.set(packed, material);
+            }
+        }
+    }
+
+    // Send the new light level to web clients if it changed, including to 0 when a light source is removed
+    private void broadcastLightingUpdate(Location location, int lightLevel) {
+        int previousLightLevel = 0; // if unknown, only new light sources are sent
+        if (worldSnapshot != null && !scanningWorldSnapshot) {
+            previousLightLevel = worldSnapshot.getLightLevel(location.getBlockY() - y_center + radius,
+                    location.getBlockX() - x_center + radius,
+                    location.getBlockZ() - z_center + radius);
+        }
+
+        if (lightLevel != previousLightLevel) {
+            clientViews.sendBlockDataLine(packSnapshotPosition(location), getLightingCommand(toWebLocationBlockX(location),
+                    toWebLocationBlockY(location), toWebLocationBlockZ(location), lightLevel));
+        }
+    }
+
+    public void releaseWorldSnapshot() {
+        unbreakablePositions = null;
+        if (worldSnapshot != null) {
+            worldSnapshot.release();
+            worldSnapshot = null;
+        }
+    }
 
     // Send the client the initial section of the world when they join
     public void sendWorld(final Channel channel) {
@@ -149,99 +396,135 @@ public class BlockBridge {
             webSocketServerThread.sendLine(channel, "E,0,0");
         }
 
-        // Send a multi-block update message announcement that a binary chunk is coming
-        /*
-        int startx = -radius;
-        int starty = y_offset;
-        int startz = -radius;
-        int endx = radius - 1;
-        int endy = radius * 2 - 1 + y_offset;
-        int endz = radius - 1;
-        */
-        int startx = 0;
-        int starty = y_offset;
-        int startz = 0;
-        int endx = radius * 2 - 1;
-        int endy = radius * 2 - 1 + y_offset;
-        int endz = radius * 2 - 1;
-
-        webSocketServerThread.sendLine(channel, "b," + startx + "," + starty + "," + startz + "," + endx + "," + endy + "," + endz);
+        if (worldSnapshot == null) {
+            // Sent when the scan completes
+            channelsAwaitingWorld.add(channel);
+            scanWorldSnapshot();
+            return;
+        }
 
-        ByteBuf data = allocator.buffer( (radius*2) * (radius*2) * (radius*2) * 2);
+        sendWorldSnapshot(channel, false);
+    }
 
-        boolean thereIsAWorld = false;
-        LinkedList<String> blockDataUpdates = new LinkedList<String>();
-        int offset = 0;
-        // Gather block data for multiblock update compression
-        for (int i = -radius; i < radius; ++i) {
-            for (int j = -radius; j < radius; ++j) {
-                for (int k = -radius; k < radius; ++k) {
-                    Block block = world.getBlockAt(j + x_center, i + y_center, k + z_center);
+    // Send the whole world again to a client which fell behind, where it is, including sections since emptied
+    public void resendWorld(Channel channel) {
+        if (worldSnapshot == null) {
+            return; // still to be sent the first time
+        }
 
-                    Material material = block.getType();
-                    BlockState blockState = block.getState();
+        sendWorldSnapshot(channel, true);
+    }
 
-                    int type = toWebBlockType(material, blockState);
-                    data.setShortLE(offset, (short) type);
-                    offset += 2;
+    private void sendWorldSnapshot(Channel channel, boolean resend) {
+        WorldSnapshot snapshot = worldSnapshot;
 
-                    // Gather block data updates
-                    String blockDataCommand = getDataBlockUpdateCommand(block.getLocation(), material, blockState);
+        // Gather everything to send on the main thread, but stream it from the channel's event loop
+        List<Object> messages = new ArrayList<Object>();
 
-                    if (type != 0) thereIsAWorld = true;
-                    if (blockDataCommand != null) blockDataUpdates.add(blockDataCommand);
-                }
-            }
+        // Move player on top of the new blocks, first so the nearby blocks streamed next are in view
+        int x_start = radius;
+        int y_start = world.getHighestBlockYAt(x_center, z_center) - radius - y_offset;
+        int z_start = radius;
+        int rotation_x = 0;
+        int rotation_y = 0;
+        if (!resend) {
+            messages.add("U,1," + x_start + "," + y_start + "," + z_start + "," + rotation_x + "," + rotation_y);
         }
-        data.writerIndex(data.capacity());
 
-        // Send compressed block types
-        try {
-            // Compress with DeflateOutputStream, note _not_ GZIPOutputStream since that adds
-            // gzip headers (see https://stackoverflow.com/questions/1838699/how-can-i-decompress-a-gzip-stream-with-zlib)
-            // which miniz does not support (https://github.com/richgel999/miniz/blob/ec028ffe66e2da67eed208de3db66fcf72b24dac/miniz.h#L33)
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            DeflaterOutputStream gzipOutputStream = new DeflaterOutputStream(byteArrayOutputStream);
-            byte[] bytes = new byte[data.readableBytes()];
-            data.readBytes(bytes);
-            gzipOutputStream.write(bytes);
-            gzipOutputStream.close();
-
-            byte[] gzipBytes = byteArrayOutputStream.toByteArray();
-            ByteBuf gzipBytesBuffer = Unpooled.wrappedBuffer(gzipBytes);
-            webSocketServerThread.sendBinary(channel, gzipBytesBuffer);
-        } catch (IOException ex) {
-            webSocketServerThread.log(Level.WARNING, "Failed to compress chunk data to send to web client: "+ex);
-            throw new RuntimeException(ex);
-        } finally {
-            data.release();
+        int format = getSectionFormat(channel);
+
+        // Send compressed block types of each section, shared with all other clients, nearest the player first
+        List<WorldSection> sections = resend ? snapshot.getAllSections() : snapshot.getNonEmptySections();
+        for (WorldSection section : sortByDistance(sections, x_start, y_start, z_start)) {
+            messages.add(getSectionAnnouncement(section, format));
+            messages.add(section.retainCompressedTypes(format));
         }
 
-        // then block data and refresh
-        for (String blockDataCommand : blockDataUpdates) {
-            webSocketServerThread.sendLine(channel, blockDataCommand);
+        // then block data, all in one frame, and refresh
+        ByteBuf blockDataCommandLines = snapshot.retainBlockDataCommandLines();
+        if (blockDataCommandLines != null) {
+            messages.add(blockDataCommandLines);
         }
 
-        webSocketServerThread.sendLine(channel,"K,0,0,1");
-        webSocketServerThread.sendLine(channel, "R,0,0");
+        messages.add("K,0,0,1");
+        messages.add("R,0,0");
 
-        if (!thereIsAWorld) {
-            webSocketServerThread.sendLine(channel, "T,No blocks sent (server misconfiguration, check x/y/z_center)");
+        if (snapshot.isEmpty() && !resend) {
+            messages.add("T,No blocks sent (server misconfiguration, check x/y/z_center)");
             webSocketServerThread.log(Level.WARNING, "No valid blocks were found centered around ("+
                 x_center + "," + y_center + "," + z_center + ") radius " + radius +
                     ", try changing these values or blocks_to_web in the configuration. All blocks were air or missing!");
         }
 
-        // Move player on top of the new blocks
-        int x_start = radius;
-        int y_start = world.getHighestBlockYAt(x_center, z_center) - radius - y_offset;
-        int z_start = radius;
-        int rotation_x = 0;
-        int rotation_y = 0;
-        webSocketServerThread.sendLine(channel, "U,1," + x_start + "," + y_start + "," + z_start + "," + rotation_x + "," + rotation_y );
+        webSocketServerThread.streamWorld(channel, messages);
     }
 
+    // Newer clients understand the smaller palette format, older ones get a short per block
+    private int getSectionFormat(Channel channel) {
+        return webSocketServerThread.getProtocolVersion(channel) >= WebSocketServerThread.PROTOCOL_VERSION_PALETTE ?
+                WorldSection.FORMAT_PALETTE : WorldSection.FORMAT_SHORTS;
+    }
+
+    // Multi-block update message announcement that a binary chunk of the section is coming
+    private String getSectionAnnouncement(WorldSection section, int format) {
+        int startx = section.j0;
+        int starty = section.i0 + y_offset;
+        int startz = section.k0;
+        int endx = startx + section.width - 1;
+        int endy = starty + section.height - 1;
+        int endz = startz + section.depth - 1;
+
+        String announcement = "b," + startx + "," + starty + "," + startz + "," + endx + "," + endy + "," + endz;
+        if (format != WorldSection.FORMAT_SHORTS) {
+            announcement += "," + format;
+        }
+        return announcement;
+    }
+
+    // Send the current blocks of one section to a client which missed changes to it while out of view
+    void resendSection(Channel channel, int sectionIndex) {
+        if (worldSnapshot == null) {
+            return; // nothing was sent yet either
+        }
+
+        WorldSection section = worldSnapshot.getSection(sectionIndex);
+        int format = getSectionFormat(channel);
+        webSocketServerThread.sendLine(channel, getSectionAnnouncement(section, format));
+        webSocketServerThread.sendBinary(channel, section.retainCompressedTypes(format));
+    }
+
+    // Order sections by the distance of their centers from the given web coordinates
+    private List<WorldSection> sortByDistance(List<WorldSection> sections, final int x, final int y, final int z) {
+        Collections.sort(sections, new Comparator<WorldSection>() {
+            @Override
+            public int compare(WorldSection a, WorldSection b) {
+                return Long.compare(distanceSquared(a), distanceSquared(b));
+            }
+
+            // Doubled coordinates, to keep section centers integral
+            private long distanceSquared(WorldSection section) {
+                long dx = section.j0 * 2 + section.width - x * 2;
+                long dy = (section.i0 + y_offset) * 2 + section.height - y * 2;
+                long dz = section.k0 * 2 + section.depth - z * 2;
+                return dx * dx + dy * dy + dz * dz;
+            }
+        });
+        return sections;
+    }
+
+    // Range of chunk coordinates overlapping the sandbox, inclusive
+    public int getMinChunkX() { return (x_center - radius) >> 4; }
+
+    public int getMaxChunkX() { return (x_center + radius - 1) >> 4; }
+
+    public int getMinChunkZ() { return (z_center - radius) >> 4; }
+
+    public int getMaxChunkZ() { return (z_center + radius - 1) >> 4; }
+
     public boolean withinSandboxRange(Location location) {
+        if (!world.equals(location.getWorld())) {
+            return false;
+        }
         int x = location.getBlockX();
         int y = location.getBlockY();
         int z = location.getBlockZ();
@@ -289,39 +572,123 @@ public class BlockBridge {
 
     public double toWebLocationEntityZ(Location location) { return location.getZ() - (-radius + z_center); }
 
-    // Handle the web client changing a block, update the bukkit world
-    public void clientBlockUpdate(ChannelHandlerContext ctx, int x, int y, int z, int type) {
+    // Check the web client changing a block on the Netty thread which received it, before it goes to the main thread,
+    // against the settings and the unbreakable blocks in the snapshot; rejected changes are reverted on the client
+    // from here. Returns false if rejected, clientBlockUpdate() checks the world itself again if not.
+    public boolean checkClientBlockUpdate(Channel channel, int x, int y, int z, int type) {
         if (!allowBreakPlaceBlocks) {
-            webSocketServerThread.sendLine(ctx.channel(), "T,Breaking/placing blocks not allowed");
-            // TODO: set back to original block to revert on client
-            return;
+            rejectNotAllowed(channel);
+            return false;
         }
 
-        Location location = toBukkitLocation(x, y, z);
+        if (!withinSandboxRange(x, y, z)) {
+            rejectOutside(channel, x, y, z);
+            return false;
+        }
 
-        if (!withinSandboxRange(location)) {
-            webSocketServerThread.log(Level.FINEST, "client tried to modify outside of sandbox! "+location); // not severe, since not prevented client-side
-            webSocketServerThread.sendLine(ctx.channel(), "T,You cannot build at ("+x+","+y+","+z+")");
-            // TODO: Clear the block, fix this (set to air)
-            /*
-            webSocketServerThread.sendLine(ctx.channel(), "B,0,0,"+ox+","+oy+","+oz+",0");
-            webSocketServerThread.sendLine(ctx.channel(), "R,0,0");
-            */
+        UnbreakablePositions unbreakable = unbreakablePositions;
+        Material previousMaterial = unbreakable != null ? unbreakable.get(packWebPosition(x, y, z)) : null;
+        if (previousMaterial != null) {
+            rejectUnbreakable(channel, x, y, z, previousMaterial);
+            return false;
+        }
+
+        Material material = type >= 0 && type < WEB_BLOCK_TYPES ? bukkitMaterials[type] : null;
+        if (material != null && isUnbreakable(material)) {
+            webSocketServerThread.log(Level.WARNING, "client tried to place unplaceable block type "+type+ " from "+material);
+            return false; // ignore, not reverting
+        }
+
+        return true;
+    }
+
+    // Whether web coordinates of a block are within the sandbox
+    private boolean withinSandboxRange(int x, int y, int z) {
+        int size = radius * 2;
+        int i = y - y_offset;
+        return x >= 0 && x < size && i >= 0 && i < size && z >= 0 && z < size;
+    }
+
+    // Pack web coordinates within the sandbox as packSnapshotPosition() does
+    private int packWebPosition(int x, int y, int z) {
+        int size = radius * 2;
+        return ((y - y_offset) * size + x) * size + z;
+    }
+
+    // Queue the web client changing a block, already passed by checkClientBlockUpdate(), to be applied by
+    // applyClientBlockUpdates() within the time allowed each tick; a change to the same block already waiting is replaced
+    public void queueClientBlockUpdate(ChannelHandlerContext ctx, int x, int y, int z, int type) {
+        clientBlockEdits.add(packWebPosition(x, y, z), new ClientBlockEdits.Edit(ctx, x, y, z, type));
+    }
+
+    // Apply the queued changes from web clients until the deadline (System.nanoTime()), at least one so they always
+    // progress, sending them to the web clients together; the rest wait for the next tick
+    public void applyClientBlockUpdates(long deadline) {
+        if (clientBlockEdits.size() == 0) {
             return;
         }
 
-        Block previousBlock = location.getBlock();
-        Material previousMaterial = previousBlock.getType();
-        if (unbreakableBlocks.contains(previousMaterial)) {
-            webSocketServerThread.log(Level.FINEST, "client tried to change unbreakable block at " +
-                    location + " of type previousMaterial="+previousMaterial);
+        clientViews.beginBulk();
+        try {
+            ClientBlockEdits.Edit edit;
+            while ((edit = clientBlockEdits.poll()) != null) {
+                try {
+                    clientBlockUpdate(edit.ctx, edit.x, edit.y, edit.z, edit.type);
+                } catch (RuntimeException ex) {
+                    // Not thrown, so the rest are still applied and sent
+                    ex.printStackTrace();
+                }
+                if (System.nanoTime() >= deadline) {
+                    break;
+                }
+            }
+            clientBlockEdits.deferred += clientBlockEdits.size();
+        } finally {
+            clientViews.endBulk();
+        }
+    }
 
-            webSocketServerThread.sendLine(ctx.channel(), "T,You cannot break blocks of type " + previousMaterial);
+    public String getClientBlockEditStats() {
+        return clientBlockEdits.size() + " block changes queued, " + clientBlockEdits.coalesced + " coalesced, " +
+                clientBlockEdits.deferred + " deferred";
+    }
 
-            // Revert on client
-            int previousType = toWebBlockType(previousMaterial, null);
-            webSocketServerThread.sendLine(ctx.channel(), "B,0,0,"+x+","+y+","+z+","+previousType);
-            webSocketServerThread.sendLine(ctx.channel(), "R,0,0");
+    private void rejectNotAllowed(Channel channel) {
+        webSocketServerThread.sendLine(channel, "T,Breaking/placing blocks not allowed");
+        // TODO: set back to original block to revert on client
+    }
+
+    private void rejectOutside(Channel channel, int x, int y, int z) {
+        webSocketServerThread.log(Level.FINEST, "client tried to modify outside of sandbox! "+x+","+y+","+z); // not severe, since not prevented client-side
+        webSocketServerThread.sendLine(channel, "T,You cannot build at ("+x+","+y+","+z+")");
+        // TODO: Clear the block, fix this (set to air)
+        /*
+        webSocketServerThread.sendLine(channel, "B,0,0,"+ox+","+oy+","+oz+",0");
+        webSocketServerThread.sendLine(channel, "R,0,0");
+        */
+    }
+
+    private void rejectUnbreakable(Channel channel, int x, int y, int z, Material previousMaterial) {
+        webSocketServerThread.log(Level.FINEST, "client tried to change unbreakable block at " +
+                x+","+y+","+z + " of type previousMaterial="+previousMaterial);
+
+        webSocketServerThread.sendLine(channel, "T,You cannot break blocks of type " + previousMaterial);
+
+        // Revert on client
+        int previousType = toWebBlockType(previousMaterial, null);
+        webSocketServerThread.sendMessage(channel, OutboundMessage.block(x, y, z, previousType));
+        webSocketServerThread.sendLine(channel, "R,0,0");
+    }
+
+    // Handle the web client changing a block, update the bukkit world
+    private void clientBlockUpdate(ChannelHandlerContext ctx, int x, int y, int z, int type) {
+        Location location = toBukkitLocation(x, y, z);
+
+        // Checked again, the block may have changed since it was checked against the snapshot
+        Block previousBlock = location.getBlock();
+        Material previousMaterial = previousBlock.getType();
+        if (isUnbreakable(previousMaterial)) {
+            rejectUnbreakable(ctx.channel(), x, y, z, previousMaterial);
             return;
         }
 
@@ -337,13 +704,22 @@ public class BlockBridge {
         toBukkitBlockType(type, blockState);
 
         // Notify other web clients - note they will have the benefit of seeing the untranslated block (feature or bug?)
-        webSocketServerThread.broadcastLineExcept(ctx.channel().id(), "B,0,0," + x + "," + y + "," + z + "," + type);
-        webSocketServerThread.broadcastLineExcept(ctx.channel().id(), "R,0,0");
+        int packed = packSnapshotPosition(location);
+        clientViews.sendBlockMessage(packed, ctx.channel().id(), OutboundMessage.block(x, y, z, type));
+        clientViews.sendRefreshLine(packed, ctx.channel().id());
+
+        // Record what was actually placed, which may differ from what the client requested; the state was just updated
+        Material material = blockState.getType();
+        int lightLevel = toWebLighting(material.getId());
+        broadcastLightingUpdate(location, lightLevel);
+        updateWorldSnapshot(location, material, toWebBlockType(material, blockState.getData()), lightLevel,
+                getSignCommand(location, blockState));
     }
 
 
     // Handle the bukkit world changing a block, tell all web clients and refresh
-    public void notifyBlockUpdate(Location location, Material material, BlockState blockState) {
+    // blockState is only needed (and may otherwise be null) for blocks where needsBlockState() is true
+    public void notifyBlockUpdate(Location location, Material material, byte data, BlockState blockState) {
         webSocketServerThread.log(Level.FINEST, "bukkit block at "+location+" was set to "+material);
 
         if (!withinSandboxRange(location)) {
@@ -351,38 +727,30 @@ public class BlockBridge {
             return;
         }
 
-        setBlockUpdate(location, material, blockState);
+        setBlockUpdate(location, material, data, blockState);
 
-        webSocketServerThread.broadcastLine("R,0,0");
+        clientViews.sendRefreshLine(packSnapshotPosition(location), null);
     }
 
-    // Get the command string to send block data besides the type, if needed (signs, lighting)
-    private String getDataBlockUpdateCommand(Location location, Material material, BlockState blockState) {
-        if (material == null || material == Material.AIR) return null;
-
-        int light_level = toWebLighting(material, blockState);
-        if (light_level != 0) {
-            int x = toWebLocationBlockX(location);
-            int y = toWebLocationBlockY(location);
-            int z = toWebLocationBlockZ(location);
-            return "L,0,0,"+x+","+y+","+z+"," + light_level;
-        }
+    // Get the command string to send the sign text, if the block is a sign
+    private String getSignCommand(Location location, BlockState blockState) {
+        if (blockState instanceof Sign) {
+            Sign sign = (Sign) blockState;
 
-        if (material == Material.WALL_SIGN || material == Material.SIGN_POST) {
-            Block block = location.getWorld().getBlockAt(location);
-            if (blockState instanceof Sign) {
-                Sign sign = (Sign) blockState;
-
-                return getNotifySignChange(block.getLocation(), block.getType(), block.getState(), sign.getLines());
-            }
+            return getNotifySignChange(location, blockState.getType(), blockState, sign.getLines());
         }
 
         return null;
     }
 
-    private void setBlockUpdate(Location location, Material material, BlockState blockState) {
-        // Send to all web clients to let them know it changed using the "B," command
-        int type = toWebBlockType(material, blockState);
+    // Get the lighting command for a block at the given web coordinates, light level 0 if not a light source
+    private String getLightingCommand(int x, int y, int z, int light_level) {
+        return "L,0,0,"+x+","+y+","+z+"," + light_level;
+    }
+
+    private void setBlockUpdate(Location location, Material material, byte data, BlockState blockState) {
+        // Send to the web clients who can see it to let them know it changed using the "B," command
+        int type = toWebBlockType(material.getId(), data);
 
         if (type == -1) {
             if (warnMissing) {
@@ -395,16 +763,99 @@ public class BlockBridge {
         int y = toWebLocationBlockY(location);
         int z = toWebLocationBlockZ(location);
 
-        webSocketServerThread.broadcastLine("B,0,0,"+x+","+y+","+z+","+type);
-        String blockDataCommand = this.getDataBlockUpdateCommand(location, material, blockState);
-        if (blockDataCommand != null) {
-            webSocketServerThread.broadcastLine(blockDataCommand);
+        clientViews.sendBlockMessage(packSnapshotPosition(location), null, OutboundMessage.block(x, y, z, type));
+
+        int lightLevel = toWebLighting(material.getId());
+        broadcastLightingUpdate(location, lightLevel);
+
+        String signCommand = this.getSignCommand(location, blockState);
+        if (signCommand != null) {
+            clientViews.sendBlockDataLine(packSnapshotPosition(location), signCommand);
         }
 
+        updateWorldSnapshot(location, material, type, lightLevel, signCommand);
+
         webSocketServerThread.log(Level.FINEST, "notified block update: ("+x+","+y+","+z+") to "+type);
     }
 
-    private int toWebLighting(Material material, BlockState blockState) {
+    // Build the lookup tables from the translations below, with the blocks_to_web_override entries folded in
+    private void buildBlockTables(Map<Material, Integer> blocksToWeb) {
+        int maxId = 0;
+        for (Material material : Material.values()) {
+            if (material.isBlock()) {
+                maxId = Math.max(maxId, material.getId());
+            }
+        }
+
+        this.webBlockTypes = new int[(maxId + 1) << 4];
+        this.webLightLevels = new byte[maxId + 1];
+        Arrays.fill(this.webBlockTypes, this.blocksToWebMissing);
+
+        for (Material material : Material.values()) {
+            if (!material.isBlock()) {
+                continue;
+            }
+            int id = material.getId();
+
+            this.webLightLevels[id] = (byte) translateWebLighting(material);
+
+            for (int data = 0; data < 16; ++data) {
+                int type;
+                if (blocksToWeb.containsKey(material)) {
+                    type = blocksToWeb.get(material);
+                } else {
+                    try {
+                        type = translateWebBlockType(material, material.getNewData((byte) data));
+                    } catch (RuntimeException ex) {
+                        // Not all data values are valid for all materials
+                        type = translateWebBlockType(material, null);
+                    }
+                }
+                this.webBlockTypes[id << 4 | data] = type;
+            }
+        }
+
+        // All other blocks translate from their type id and data byte alone, so their BlockState need not be fetched
+        this.blockStateBlocks = new BitSet();
+        this.blockStateBlocks.set(Material.WALL_SIGN.getId());
+        this.blockStateBlocks.set(Material.SIGN_POST.getId());
+
+        this.bukkitMaterials = new Material[WEB_BLOCK_TYPES];
+        this.bukkitMaterialData = new MaterialData[WEB_BLOCK_TYPES];
+        for (int type = 0; type < WEB_BLOCK_TYPES; ++type) {
+            translateBukkitBlockType(type);
+        }
+    }
+
+    private int toWebBlockType(int id, int data) {
+        int index = id << 4 | (data & 15);
+        if (index < 0 || index >= webBlockTypes.length) {
+            return blocksToWebMissing;
+        }
+        return webBlockTypes[index];
+    }
+
+    private int toWebBlockType(Material material, MaterialData materialData) {
+        return toWebBlockType(material.getId(), materialData != null ? materialData.getData() : 0);
+    }
+
+    private int toWebLighting(int id) {
+        if (id < 0 || id >= webLightLevels.length) {
+            return 0;
+        }
+        return webLightLevels[id];
+    }
+
+    // Whether translating this block needs its BlockState, fetching it otherwise is a needless allocation
+    public boolean needsBlockState(Material material) {
+        return blockStateBlocks.get(material.getId());
+    }
+
+    private boolean isUnbreakable(Material material) {
+        return unbreakableBlocks.get(material.getId());
+    }
+
+    private int translateWebLighting(Material material) {
         // See http://minecraft.gamepedia.com/Light#Blocks
         // Note not all of these may be fully supported yet
         switch (material) {
@@ -414,7 +865,7 @@ public class BlockBridge {
             case GLOWSTONE:
             case JACK_O_LANTERN:
             case LAVA:
-            case REDSTONE_LAMP_ON: // TODO: get notified when toggles on/off
+            case REDSTONE_LAMP_ON:
             case SEA_LANTERN:
             case END_ROD:
                 return 15;
@@ -476,13 +927,7 @@ public class BlockBridge {
 
     // Translate web<->bukkit blocks
     // TODO: refactor to remove all bukkit dependency in this class (enums strings?), generalize to can support others
-    private int toWebBlockType(Material material, BlockState blockState) {
-        if (blocksToWeb.containsKey(material)) {
-            return blocksToWeb.get(material);
-        }
-
-        MaterialData materialData = blockState != null ? blockState.getData() : null;
-
+    private int translateWebBlockType(Material material, MaterialData materialData) {
         switch (material) {
             case AIR: return 0;
             case GRASS: return 1;
@@ -707,6 +1152,37 @@ public class BlockBridge {
         Material material = null;
         MaterialData materialData = null;
 
+        if (type >= 0 && type < WEB_BLOCK_TYPES) {
+            material = bukkitMaterials[type];
+            materialData = bukkitMaterialData[type];
+        }
+
+        if (material == null) {
+            webSocketServerThread.log(Level.WARNING, "untranslated web block id "+type);
+            material = Material.DIAMOND_ORE; // placeholder TODO fix
+        }
+
+        if (isUnbreakable(material)) {
+            webSocketServerThread.log(Level.WARNING, "client tried to place unplaceable block type "+type+ " from "+material);
+            return; // ignore, not reverting
+        }
+
+        blockState.setType(material);
+
+        if (materialData != null) {
+            blockState.setData(materialData.clone());
+        }
+
+        boolean force = true;
+        boolean applyPhysics = false;
+        blockState.update(force, applyPhysics);
+    }
+
+    // Fill in the Bukkit lookup tables for web block type type
+    private void translateBukkitBlockType(int type) {
+        Material material = null;
+        MaterialData materialData = null;
+
         switch (type) {
             case 0: material = Material.AIR; break;
             case 1: material = Material.GRASS; break;
@@ -855,26 +1331,12 @@ public class BlockBridge {
             case 109: material = Material.LEAVES; break; // TODO: spruce leaves
 
             default:
-                webSocketServerThread.log(Level.WARNING, "untranslated web block id "+type);
-                material = Material.DIAMOND_ORE; // placeholder TODO fix
-        }
-
-        if (unbreakableBlocks.contains(material)) {
-            webSocketServerThread.log(Level.WARNING, "client tried to place unplaceable block type "+type+ " from "+material);
-            return; // ignore, not reverting
+                // untranslated
+                break;
         }
 
-        if (material != null) {
-            blockState.setType(material);
-
-            if (materialData != null) {
-                blockState.setData(materialData);
-            }
-
-            boolean force = true;
-            boolean applyPhysics = false;
-            blockState.update(force, applyPhysics);
-        }
+        bukkitMaterials[type] = material;
+        bukkitMaterialData[type] = materialData;
     }
 
     public String getNotifySignChange(Location location, Material material, BlockState blockState, String[] lines) {
@@ -966,45 +1428,57 @@ public class BlockBridge {
     }
 
     public void notifySignChange(Location location, Material material, BlockState blockState, String[] lines) {
-        webSocketServerThread.broadcastLine(this.getNotifySignChange(location, material, blockState, lines));
-        webSocketServerThread.broadcastLine("R,0,0"); // TODO: refresh correct chunk
+        if (!withinSandboxRange(location)) {
+            return;
+        }
+
+        String signCommand = this.getNotifySignChange(location, material, blockState, lines);
+        updateWorldSnapshot(location, material, toWebBlockType(material, blockState.getData()),
+                toWebLighting(material.getId()), signCommand);
+
+        int packed = packSnapshotPosition(location);
+        clientViews.sendBlockDataLine(packed, signCommand);
+        clientViews.sendRefreshLine(packed, null); // TODO: refresh correct chunk
     }
 
-    public void clientNewSign(ChannelHandlerContext ctx, int x, int y, int z, int face, String text) {
+    // Which way a sign placed by a web client faces, it is placed on the block next to the one clicked that way
+    private static BlockFace toSignFace(int face) {
+        switch (face) {
+            case 0: return BlockFace.WEST;
+            case 1: return BlockFace.EAST;
+            default:
+            case 2: return BlockFace.NORTH;
+            case 3: return BlockFace.SOUTH;
+        }
+    }
+
+    // Check the web client placing a sign on the Netty thread which received it, like checkClientBlockUpdate(),
+    // so only signs which can be placed go to the main thread. Returns false if rejected.
+    public boolean checkClientNewSign(Channel channel, int x, int y, int z, int face) {
         if (!allowSigns) {
-            webSocketServerThread.sendLine(ctx.channel(), "T,Writing on signs is not allowed");
+            webSocketServerThread.sendLine(channel, "T,Writing on signs is not allowed");
             // TODO: revert on client
-            return;
+            return false;
         }
 
-        BlockFace blockFace;
-        switch (face) {
-            case 0: // west
-                blockFace = BlockFace.WEST;
-                x -= 1;
-                break;
-            case 1: // east
-                blockFace = BlockFace.EAST;
-                x += 1;
-                break;
-            default:
-            case 2: // north
-                blockFace = BlockFace.NORTH;
-                z -= 1;
-                break;
-            case 3: // south
-                blockFace = BlockFace.SOUTH;
-                z += 1;
-                break;
+        BlockFace blockFace = toSignFace(face);
+        if (!withinSandboxRange(x + blockFace.getModX(), y, z + blockFace.getModZ())) {
+            webSocketServerThread.log(Level.FINEST, "client tried to write a sign outside sandbox range");
+            return false;
         }
+
+        return true;
+    }
+
+    // Place a sign from a web client, already passed by checkClientNewSign()
+    public void clientNewSign(ChannelHandlerContext ctx, int x, int y, int z, int face, String text) {
+        BlockFace blockFace = toSignFace(face);
+        x += blockFace.getModX();
+        z += blockFace.getModZ();
         org.bukkit.material.Sign signDirection = new org.bukkit.material.Sign();
         signDirection.setFacingDirection(blockFace);
 
         Location location = toBukkitLocation(x, y, z);
-        if (!withinSandboxRange(location)) {
-            webSocketServerThread.log(Level.FINEST, "client tried to write a sign outside sandbox range");
-            return;
-        }
 
         // Create the sign
         Block block = location.getWorld().getBlockAt(location);
@@ -0,0 +1,49 @@
+package io.github.satoshinm.WebSandboxMC.bridge;
+
+import org.bukkit.World;
+
+import java.util.Collection;
+
+/**
+ * Chunks overlapping any sandbox region, to cheaply ignore the events happening anywhere else on the server
+ * before the exact (per-region) withinSandboxRange() check
+ */
+public class ChunkFilter {
+
+    // For each region, the rectangle of chunks it overlaps; kept per region rather than bounding all the regions
+    // of a world, which could be far apart
+    private final World[] worlds;
+    private final int[] minChunkX, minChunkZ;
+    private final int[] maxChunkX, maxChunkZ;
+
+    public ChunkFilter(Collection<BlockBridge> blockBridges) {
+        int count = blockBridges.size();
+        this.worlds = new World[count];
+        this.minChunkX = new int[count];
+        this.minChunkZ = new int[count];
+        this.maxChunkX = new int[count];
+        this.maxChunkZ = new int[count];
+
+        int r = 0;
+        for (BlockBridge blockBridge : blockBridges) {
+            worlds[r] = blockBridge.world;
+            minChunkX[r] = blockBridge.getMinChunkX();
+            minChunkZ[r] = blockBridge.getMinChunkZ();
+            maxChunkX[r] = blockBridge.getMaxChunkX();
+            maxChunkZ[r] = blockBridge.getMaxChunkZ();
+            ++r;
+        }
+    }
+
+    // Whether the chunk may be within a sandbox, if false then nothing in it can be
+    public boolean mayContain(World world, int chunkX, int chunkZ) {
+        for (int r = 0; r < worlds.length; ++r) {
+            if (worlds[r] == world &&
+                    chunkX >= minChunkX[r] && chunkX <= maxChunkX[r] &&
+                    chunkZ >= minChunkZ[r] && chunkZ <= maxChunkZ[r]) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
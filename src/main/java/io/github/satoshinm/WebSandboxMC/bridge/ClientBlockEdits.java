@@ -0,0 +1,60 @@
+package io.github.satoshinm.WebSandboxMC.bridge;
+
+import io.netty.channel.ChannelHandlerContext;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Block changes from web clients in one region waiting to be applied to the world, in the order they were made.
+ * A change to a block still waiting replaces the earlier one, so filling or clearing the same area repeatedly only
+ * changes each block once. Only used from the main thread.
+ */
+class ClientBlockEdits {
+
+    static class Edit {
+        final ChannelHandlerContext ctx;
+        final int x, y, z, type; // web coordinates and block type
+
+        Edit(ChannelHandlerContext ctx, int x, int y, int z, int type) {
+            this.ctx = ctx;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.type = type;
+        }
+    }
+
+    private final Map<Integer, Edit> edits; // by packed snapshot position
+
+    // Counters over the life of the region
+    int coalesced; // replaced by a later change to the same block before being applied
+    int deferred; // left for a later tick, summed over each tick
+
+    ClientBlockEdits() {
+        this.edits = new LinkedHashMap<Integer, Edit>();
+    }
+
+    void add(int packed, Edit edit) {
+        if (edits.put(packed, edit) != null) {
+            ++coalesced;
+        }
+    }
+
+    // Remove and return the oldest change, or null if there are none
+    Edit poll() {
+        Iterator<Edit> iterator = edits.values().iterator();
+        if (!iterator.hasNext()) {
+            return null;
+        }
+
+        Edit edit = iterator.next();
+        iterator.remove();
+        return edit;
+    }
+
+    int size() {
+        return edits.size();
+    }
+}
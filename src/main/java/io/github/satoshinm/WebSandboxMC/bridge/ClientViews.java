@@ -0,0 +1,347 @@
+package io.github.satoshinm.WebSandboxMC.bridge;
+
+import io.github.satoshinm.WebSandboxMC.ws.OutboundMessage;
+import io.github.satoshinm.WebSandboxMC.ws.WebSocketServerThread;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelId;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+import org.bukkit.Location;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What each web client in one region can see from where it last said it was, so block changes and entity
+ * positions are only sent to the clients near enough to see them. Things come into view within the view distance
+ * but only leave it some way past, so a client moving along the edge does not keep gaining and losing them.
+ * Only used from the main thread.
+ */
+public class ClientViews {
+
+    private static final double HYSTERESIS = 8; // blocks past the view distance before something leaves view
+    private static final double RECHECK_DISTANCE = HYSTERESIS / 2; // blocks a client moves before rechecking its view
+
+    private final WebSocketServerThread webSocketServerThread;
+    private final BlockBridge blockBridge;
+    private final double enterDistance, leaveDistance; // infinite if every client sees the whole region
+    private final int size; // blocks along each edge of the sandbox
+    private final int y_offset;
+    private final int sectionsPerEdge;
+    private final boolean seePlayers; // if not, no entities are tracked or sent, only blocks
+
+    private final Map<ChannelId, ClientView> views;
+    private final IntObjectHashMap<ViewedEntity> entities; // everything with a position in the region, by entity id
+
+    // Messages to send together at the end of a bulk update, and who to each, or null if not in one
+    private List<List<Channel>> bulkChannels;
+    private List<OutboundMessage> bulkMessages;
+
+    private static class ClientView {
+        final Channel channel;
+        final int entityId; // the client's own entity, never sent to it, or -1 if none
+        double x, y, z; // web coordinates
+        double checkedX, checkedY, checkedZ; // where sections and entities in view were last checked from
+        final BitSet sectionsInView = new BitSet();
+        final BitSet staleSections = new BitSet(); // blocks changed while out of view
+        final Map<Integer, OutboundMessage> missedDataLines = new HashMap<Integer, OutboundMessage>(); // latest while out of view, by packed position
+        final IntObjectHashMap<Boolean> entitiesInView = new IntObjectHashMap<Boolean>();
+
+        ClientView(Channel channel, int entityId) {
+            this.channel = channel;
+            this.entityId = entityId;
+        }
+    }
+
+    private static class ViewedEntity {
+        String name;
+        double x, y, z; // web coordinates
+        OutboundMessage position;
+    }
+
+    public ClientViews(WebSocketServerThread webSocketServerThread, BlockBridge blockBridge, int viewDistance,
+                       int size, int y_offset, boolean seePlayers) {
+        this.webSocketServerThread = webSocketServerThread;
+        this.blockBridge = blockBridge;
+        if (viewDistance <= 0) {
+            this.enterDistance = Double.POSITIVE_INFINITY;
+            this.leaveDistance = Double.POSITIVE_INFINITY;
+        } else {
+            this.enterDistance = viewDistance;
+            this.leaveDistance = viewDistance + HYSTERESIS;
+        }
+        this.size = size;
+        this.y_offset = y_offset;
+        this.sectionsPerEdge = WorldSnapshot.sectionsPerEdge(size);
+        this.seePlayers = seePlayers;
+
+        this.views = new LinkedHashMap<ChannelId, ClientView>();
+        this.entities = new IntObjectHashMap<ViewedEntity>();
+    }
+
+    // Start tracking a client which was just sent the world, from the spawn location until it sends its position,
+    // and send it the entities it can see
+    public void addClient(Channel channel, int entityId) {
+        ClientView view = new ClientView(channel, entityId);
+        Location spawnLocation = blockBridge.spawnLocation;
+        view.x = blockBridge.toWebLocationEntityX(spawnLocation);
+        view.y = blockBridge.toWebLocationEntityY(spawnLocation);
+        view.z = blockBridge.toWebLocationEntityZ(spawnLocation);
+
+        views.put(channel.id(), view);
+        checkView(view);
+    }
+
+    public void removeClient(Channel channel) {
+        views.remove(channel.id());
+    }
+
+    // Stop tracking a client, before it is sent everything again; the entities it was sent are deleted by its
+    // OutboundBatch, which knows which ones it actually has
+    public void resetClient(Channel channel) {
+        views.remove(channel.id());
+    }
+
+    // Handle the client sending its position, in web coordinates
+    public void clientMoved(Channel channel, double x, double y, double z) {
+        ClientView view = views.get(channel.id());
+        if (view == null) {
+            return;
+        }
+
+        view.x = x;
+        view.y = y;
+        view.z = z;
+
+        if (distance(view, view.checkedX, view.checkedY, view.checkedZ) >= RECHECK_DISTANCE) {
+            checkView(view);
+        }
+    }
+
+    // Bring sections and entities into or out of view of where the client is now
+    private void checkView(ClientView view) {
+        view.checkedX = view.x;
+        view.checkedY = view.y;
+        view.checkedZ = view.z;
+
+        int sections = sectionsPerEdge * sectionsPerEdge * sectionsPerEdge;
+        for (int sectionIndex = 0; sectionIndex < sections; ++sectionIndex) {
+            double distance = distanceToSection(view, sectionIndex);
+            if (view.sectionsInView.get(sectionIndex)) {
+                if (distance > leaveDistance) {
+                    view.sectionsInView.clear(sectionIndex);
+                }
+            } else if (distance <= enterDistance) {
+                view.sectionsInView.set(sectionIndex);
+                catchUpSection(view, sectionIndex);
+            }
+        }
+
+        for (IntObjectMap.PrimitiveEntry<ViewedEntity> entry : entities.entries()) {
+            checkEntityInView(view, entry.key(), entry.value());
+        }
+    }
+
+    // Send what changed in a section while it was out of view, now that it is back in view
+    private void catchUpSection(ClientView view, int sectionIndex) {
+        boolean changed = false;
+        if (view.staleSections.get(sectionIndex)) {
+            view.staleSections.clear(sectionIndex);
+            blockBridge.resendSection(view.channel, sectionIndex);
+            changed = true;
+        }
+
+        Iterator<Map.Entry<Integer, OutboundMessage>> iterator = view.missedDataLines.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Integer, OutboundMessage> entry = iterator.next();
+            if (sectionOf(entry.getKey()) == sectionIndex) {
+                webSocketServerThread.sendMessage(view.channel, entry.getValue());
+                iterator.remove();
+                changed = true;
+            }
+        }
+
+        if (changed) {
+            webSocketServerThread.sendLine(view.channel, "R,0,0");
+        }
+    }
+
+    // What to remember for the clients a block line is not sent to, because they cannot see the block
+    private static final int MISSED_NOTHING = 0;
+    private static final int MISSED_BLOCKS = 1;
+    private static final int MISSED_DATA_LINE = 2;
+
+    // Send a block change (B) message for the block at the packed snapshot position to the clients with it in
+    // view, except one if given; the others are resent the whole section when it comes into view
+    public void sendBlockMessage(int packed, ChannelId excludeChannelId, OutboundMessage message) {
+        sendBlockMessage(packed, excludeChannelId, message, MISSED_BLOCKS);
+    }
+
+    // Send a lighting (L) or sign (S) line for the block at the packed snapshot position to the clients with it
+    // in view, the others are sent the latest line for the block when it comes into view
+    public void sendBlockDataLine(int packed, String line) {
+        sendBlockMessage(packed, null, OutboundMessage.line(line), MISSED_DATA_LINE);
+    }
+
+    // Refresh the chunk of the block at the packed snapshot position for the clients with it in view
+    public void sendRefreshLine(int packed, ChannelId excludeChannelId) {
+        sendBlockMessage(packed, excludeChannelId, OutboundMessage.line("R,0,0"), MISSED_NOTHING);
+    }
+
+    private void sendBlockMessage(int packed, ChannelId excludeChannelId, OutboundMessage message, int missed) {
+        int sectionIndex = sectionOf(packed);
+
+        List<Channel> channels = new ArrayList<Channel>();
+        for (ClientView view : views.values()) {
+            if (view.channel.id().equals(excludeChannelId)) {
+                continue;
+            }
+
+            if (view.sectionsInView.get(sectionIndex)) {
+                channels.add(view.channel);
+            } else if (missed == MISSED_DATA_LINE) {
+                view.missedDataLines.put(packed, message);
+            } else if (missed == MISSED_BLOCKS) {
+                view.staleSections.set(sectionIndex);
+            }
+        }
+
+        multicast(channels, message);
+    }
+
+    // Collect the messages sent to multiple clients until endBulk(), then hand them to the region's event loop
+    // at once instead of one at a time
+    public void beginBulk() {
+        bulkChannels = new ArrayList<List<Channel>>();
+        bulkMessages = new ArrayList<OutboundMessage>();
+    }
+
+    public void endBulk() {
+        List<List<Channel>> channelLists = bulkChannels;
+        List<OutboundMessage> messages = bulkMessages;
+        bulkChannels = null;
+        bulkMessages = null;
+
+        webSocketServerThread.multicastMessages(blockBridge, channelLists, messages);
+    }
+
+    private void multicast(List<Channel> channels, OutboundMessage message) {
+        if (bulkMessages == null) {
+            webSocketServerThread.multicastMessage(blockBridge, channels, message);
+        } else if (!channels.isEmpty()) {
+            bulkChannels.add(channels);
+            bulkMessages.add(message);
+        }
+    }
+
+    // Send the new position of an entity in the region to the clients who can see it, bringing it into or out of
+    // view of the others as needed
+    public void entityMoved(int id, String name, Location location) {
+        if (!seePlayers) {
+            return;
+        }
+
+        ViewedEntity entity = entities.get(id);
+        if (entity == null) {
+            entity = new ViewedEntity();
+            entities.put(id, entity);
+        }
+        entity.name = name;
+        entity.x = blockBridge.toWebLocationEntityX(location);
+        entity.y = blockBridge.toWebLocationEntityY(location);
+        entity.z = blockBridge.toWebLocationEntityZ(location);
+        entity.position = webSocketServerThread.playersBridge.getPositionMessage(blockBridge, id, location);
+
+        List<Channel> channels = new ArrayList<Channel>();
+        for (ClientView view : views.values()) {
+            if (checkEntityInView(view, id, entity)) {
+                channels.add(view.channel);
+            }
+        }
+
+        multicast(channels, entity.position);
+    }
+
+    // The entity left the region, delete it from the clients who could see it
+    public void entityRemoved(int id) {
+        if (entities.remove(id) == null) {
+            return;
+        }
+
+        for (ClientView view : views.values()) {
+            if (view.entitiesInView.remove(id) != null) {
+                webSocketServerThread.sendMessage(view.channel, OutboundMessage.delete(id));
+            }
+        }
+    }
+
+    // Bring an entity into or out of view of the client, returns true if it was and still is in view
+    private boolean checkEntityInView(ClientView view, int id, ViewedEntity entity) {
+        if (id == view.entityId) {
+            // No third person, web players don't need entities for themselves
+            return false;
+        }
+
+        double distance = distance(view, entity.x, entity.y, entity.z);
+        if (view.entitiesInView.containsKey(id)) {
+            if (distance <= leaveDistance) {
+                return true;
+            }
+
+            view.entitiesInView.remove(id);
+            webSocketServerThread.sendMessage(view.channel, OutboundMessage.delete(id));
+        } else if (distance <= enterDistance) {
+            view.entitiesInView.put(id, Boolean.TRUE);
+
+            // Craft requires P (position update) before N (name), since it allocates the entity in P...
+            // even though it is named in N (before that, default name 'player'+id). Therefore we must send P first.
+            // TODO: change this behavior on client, allowing N to allocate? OTOH, the initial position is important...
+            webSocketServerThread.sendMessage(view.channel, entity.position);
+            webSocketServerThread.sendMessage(view.channel, OutboundMessage.name(id, entity.name));
+        }
+        return false;
+    }
+
+    // Index of the section containing a packed snapshot position, as in WorldSnapshot
+    private int sectionOf(int packed) {
+        int i = packed / size / size;
+        int j = packed / size % size;
+        int k = packed % size;
+        return WorldSnapshot.sectionIndex(sectionsPerEdge, i / WorldSection.SIZE, j / WorldSection.SIZE, k / WorldSection.SIZE);
+    }
+
+    // Distance from the client to the nearest point of a section, in blocks
+    private double distanceToSection(ClientView view, int sectionIndex) {
+        int si = sectionIndex / sectionsPerEdge / sectionsPerEdge;
+        int sj = sectionIndex / sectionsPerEdge % sectionsPerEdge;
+        int sk = sectionIndex % sectionsPerEdge;
+
+        double dx = distanceOutside(view.x, sj * WorldSection.SIZE);
+        double dy = distanceOutside(view.y, si * WorldSection.SIZE + y_offset);
+        double dz = distanceOutside(view.z, sk * WorldSection.SIZE);
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+    // Distance from a coordinate to the span of a section starting at start along the same axis, 0 if within it
+    private static double distanceOutside(double coordinate, int start) {
+        if (coordinate < start) {
+            return start - coordinate;
+        }
+        if (coordinate > start + WorldSection.SIZE) {
+            return coordinate - (start + WorldSection.SIZE);
+        }
+        return 0;
+    }
+
+    private static double distance(ClientView view, double x, double y, double z) {
+        double dx = view.x - x;
+        double dy = view.y - y;
+        double dz = view.z - z;
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+}
@@ -1,17 +1,15 @@
 package io.github.satoshinm.WebSandboxMC.bridge;
 
 import io.github.satoshinm.WebSandboxMC.Settings;
+import io.github.satoshinm.WebSandboxMC.ws.OutboundMessage;
 import io.github.satoshinm.WebSandboxMC.ws.WebSocketServerThread;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.ChannelId;
+import io.netty.util.collection.IntObjectHashMap;
 import org.bukkit.Bukkit;
 import org.bukkit.Location;
 import org.bukkit.entity.Entity;
-import org.bukkit.entity.Player;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.util.*;
 
 /**
@@ -21,7 +19,7 @@ public class PlayersBridge {
 
     private final WebSocketServerThread webSocketServerThread;
 
-    private Set<Integer> playersInSandbox;
+    private Map<BlockBridge, IntObjectHashMap<String>> playersInSandbox; // names by entity id, by region
     private boolean allowChatting;
     private boolean seeChat;
     private boolean seePlayers;
@@ -32,74 +30,41 @@ public class PlayersBridge {
         this.seeChat = settings.seeChat;
         this.seePlayers = settings.seePlayers;
 
-        this.playersInSandbox = new HashSet<Integer>();
+        this.playersInSandbox = new HashMap<BlockBridge, IntObjectHashMap<String>>();
     }
 
-    public void sendPlayers(Channel channel) {
-        if (!seePlayers) {
-            return;
+    private IntObjectHashMap<String> getPlayersInSandbox(BlockBridge blockBridge) {
+        IntObjectHashMap<String> players = this.playersInSandbox.get(blockBridge);
+        if (players == null) {
+            players = new IntObjectHashMap<String>();
+            this.playersInSandbox.put(blockBridge, players);
         }
+        return players;
+    }
 
-        for (Player player: PlayersBridge.getOnlinePlayers()) {
-            int id = player.getEntityId();
-            Location location = player.getLocation();
-            String name = player.getDisplayName();
-
-            if (this.playersInSandbox.contains(id)) {
-                webSocketServerThread.sendLine(channel, "P," + id + "," + encodeLocation(location));
-                webSocketServerThread.sendLine(channel, "N," + id + "," + name);
+    private boolean isInAnySandbox(int id) {
+        for (IntObjectHashMap<String> players : this.playersInSandbox.values()) {
+            if (players.containsKey(id)) {
+                return true;
             }
         }
-
-        // Web players
-        for (Map.Entry<ChannelId, Entity> entry : webSocketServerThread.webPlayerBridge.channelId2Entity.entrySet()) {
-            ChannelId channelId = entry.getKey();
-
-            if (channelId.equals(channel.id())) {
-                // No third person, web players don't need entities for themselves
-                continue;
-            }
-
-            Entity entity = entry.getValue();
-
-            int id = entity.getEntityId();
-            Location location = entity.getLocation();
-            String name = webSocketServerThread.webPlayerBridge.entityId2Username.get(id);
-            if (name == null) name = "entity-"+id;
-
-            webSocketServerThread.sendLine(channel, "P," + id + "," + encodeLocation(location));
-            webSocketServerThread.sendLine(channel, "N," + id + "," + name);
-        }
+        return false;
     }
 
-    private static Collection<? extends Player> getOnlinePlayers() {
-        try {
-            return Bukkit.getServer().getOnlinePlayers();
-        } catch (NoSuchMethodError ex1) {
-            // Older Bukkit servers return an array instead of collection
-            Class<?> clazz = Bukkit.getServer().getClass();
-            try {
-                Method method = clazz.getMethod("getOnlinePlayers");
-                Player players[] = (Player[]) method.invoke(Bukkit.getServer());
-
-                return Arrays.asList(players);
-
-            } catch (NoSuchMethodException ex) { // funny it's Exception here but Error above
-                ex.printStackTrace();
-            } catch (IllegalAccessException ex) {
-                ex.printStackTrace();
-            } catch (InvocationTargetException ex) {
-                ex.printStackTrace();
-            }
-        }
+    // Start following what a newly joined web client can see, sending it the players and web players in view
+    // unless see_players is off, when ClientViews tracks no entities to send
+    public void sendPlayers(Channel channel) {
+        BlockBridge blockBridge = webSocketServerThread.getBlockBridge(channel);
+        Entity entity = webSocketServerThread.webPlayerBridge.channelId2Entity.get(channel.id());
 
-        return Collections.emptyList();
+        blockBridge.clientViews.addClient(channel, entity != null ? entity.getEntityId() : -1);
     }
 
-    public String encodeLocation(Location location) {
-        double x = webSocketServerThread.blockBridge.toWebLocationEntityX(location);
-        double y = webSocketServerThread.blockBridge.toWebLocationEntityY(location);
-        double z = webSocketServerThread.blockBridge.toWebLocationEntityZ(location);
+    // Position (P) message for the entity at the location, in web coordinates of the given region
+    public OutboundMessage getPositionMessage(BlockBridge blockBridge, int id, Location location) {
+        double x = blockBridge.toWebLocationEntityX(location);
+        double y = blockBridge.toWebLocationEntityY(location);
+        double z = blockBridge.toWebLocationEntityZ(location);
 
         // yaw is degrees, 0(360)=+z, 180=-z, 90=-x, 270=+x
         float yaw = location.getYaw();
@@ -111,7 +76,7 @@ public class PlayersBridge {
         double rx = -yaw * Math.PI / 180;
         double ry = -pitch * Math.PI / 180;
 
-        return x + "," + y + "," + z + "," + rx + "," + ry;
+        return OutboundMessage.position(id, x, y, z, rx, ry);
     }
 
     public void notifyMove(int id, String name, Location location) {
@@ -119,20 +84,34 @@ public class PlayersBridge {
             return;
         }
 
-        if (!webSocketServerThread.blockBridge.withinSandboxRange(location)) {
+        // Most moves are by players nowhere near any sandbox, who need no updates unless they just left one
+        if (!webSocketServerThread.chunkFilter.mayContain(location.getWorld(),
+                location.getBlockX() >> 4, location.getBlockZ() >> 4) && !isInAnySandbox(id)) {
+            return;
+        }
+
+        for (BlockBridge blockBridge : webSocketServerThread.blockBridges.values()) {
+            notifyMove(blockBridge, id, name, location);
+        }
+    }
+
+    private void notifyMove(BlockBridge blockBridge, int id, String name, Location location) {
+        IntObjectHashMap<String> players = getPlayersInSandbox(blockBridge);
+
+        if (!blockBridge.withinSandboxRange(location)) {
             // No position updates for players outside of the sandbox, but if they were previously inside, kill them
-            if (this.playersInSandbox.contains(id)) {
-                this.notifyDelete(id);
+            if (players.containsKey(id)) {
+                this.notifyDelete(blockBridge, id);
             }
             return;
         }
 
-        if (!this.playersInSandbox.contains(id)) {
-            // Transitioned from outside to inside sandbox - allocate
-            this.notifyAdd(id, name, location);
+        if (!players.containsKey(id)) {
+            // Transitioned from outside to inside sandbox - allocate, sent to web clients as it comes into their view
+            players.put(id, name);
         }
 
-        webSocketServerThread.broadcastLine("P," + id + "," + encodeLocation(location));
+        blockBridge.clientViews.entityMoved(id, name, location);
     }
 
     public void notifyAdd(int id, String name, Location initialLocation) {
@@ -140,17 +119,9 @@ public class PlayersBridge {
             return;
         }
 
-        if (!webSocketServerThread.blockBridge.withinSandboxRange(initialLocation)) {
-            return;
+        for (BlockBridge blockBridge : webSocketServerThread.blockBridges.values()) {
+            notifyMove(blockBridge, id, name, initialLocation);
         }
-        this.playersInSandbox.add(id);
-
-        // Craft requires P (position update) before N (name), since it allocates the entity in P...
-        // even though it is named in N (before that, default name 'player'+id). Therefore we must send P first.
-        // TODO: change this behavior on client, allowing N to allocate? OTOH, the initial position is important...
-        this.notifyMove(id, name, initialLocation);
-
-        webSocketServerThread.broadcastLine("N," + id + "," + name);
     }
 
     public void notifyDelete(int id) {
@@ -158,10 +129,17 @@ public class PlayersBridge {
             return;
         }
 
-        if (this.playersInSandbox.contains(id)) {
-            this.playersInSandbox.remove(id);
+        for (BlockBridge blockBridge : webSocketServerThread.blockBridges.values()) {
+            notifyDelete(blockBridge, id);
+        }
+    }
+
+    private void notifyDelete(BlockBridge blockBridge, int id) {
+        IntObjectHashMap<String> players = getPlayersInSandbox(blockBridge);
+        if (players.containsKey(id)) {
+            players.remove(id);
             // delete this entity
-            webSocketServerThread.broadcastLine("D," + id);
+            blockBridge.clientViews.entityRemoved(id);
         }
     }
 
@@ -173,16 +151,22 @@ public class PlayersBridge {
         webSocketServerThread.broadcastLine("T," + message);
     }
 
-    public void clientChat(ChannelHandlerContext ctx, String theirName, String chat) {
+    // Send chat from a web client to the other web clients, from its Netty thread; returns the chat to send to the
+    // server with serverChat() from the main thread, or null if it was not allowed
+    public String clientChat(ChannelHandlerContext ctx, String theirName, String chat) {
         if (!allowChatting) {
             webSocketServerThread.sendLine(ctx.channel(), "T,Chatting is not allowed");
-            return;
+            return null;
         }
 
         String formattedChat = "<" + theirName + "> " + chat;
         webSocketServerThread.broadcastLine("T," + formattedChat);
-        Bukkit.getServer().broadcastMessage(formattedChat); // TODO: only to permission name?
 
         // TODO: support some server /commands?
+        return formattedChat;
+    }
+
+    public void serverChat(String formattedChat) {
+        Bukkit.getServer().broadcastMessage(formattedChat); // TODO: only to permission name?
     }
 }
@@ -0,0 +1,51 @@
+package io.github.satoshinm.WebSandboxMC.bridge;
+
+import org.bukkit.Material;
+
+import java.util.BitSet;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Where the unbreakable blocks are in a region's world snapshot, a bit for each packed snapshot position for each
+ * unbreakable material found there, so web clients breaking them are rejected on the Netty thread. Changed only
+ * from one thread at a time, the scan then the main thread, and read from any; a read racing with a change may
+ * miss it, the main thread checks the world itself again.
+ */
+class UnbreakablePositions {
+
+    private final int size; // positions in the snapshot
+    private volatile Map<Material, BitSet> positions; // replaced, never changed, when a material is added
+
+    UnbreakablePositions(int size) {
+        this.size = size;
+        this.positions = new EnumMap<Material, BitSet>(Material.class);
+    }
+
+    void set(int packed, Material material) {
+        BitSet bits = positions.get(material);
+        if (bits == null) {
+            Map<Material, BitSet> added = new EnumMap<Material, BitSet>(positions);
+            bits = new BitSet(size);
+            added.put(material, bits);
+            positions = added;
+        }
+        bits.set(packed);
+    }
+
+    void clear(int packed) {
+        for (BitSet bits : positions.values()) {
+            bits.clear(packed);
+        }
+    }
+
+    // The unbreakable material at the position, or null if it is not
+    Material get(int packed) {
+        for (Map.Entry<Material, BitSet> entry : positions.entrySet()) {
+            if (entry.getValue().get(packed)) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+}
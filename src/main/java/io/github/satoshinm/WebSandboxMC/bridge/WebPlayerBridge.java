@@ -5,6 +5,8 @@ import io.github.satoshinm.WebSandboxMC.bukkit.ClickableLinks;
 import io.github.satoshinm.WebSandboxMC.ws.WebSocketServerThread;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelId;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
 import org.bukkit.Location;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Entity;
@@ -15,6 +17,7 @@ import org.bukkit.event.entity.EntityDamageEvent;
 
 import java.math.BigInteger;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
@@ -30,7 +33,7 @@ public class WebPlayerBridge {
     private int lastPlayerID;
     public Map<ChannelId, String> channelId2name;
     public Map<ChannelId, Entity> channelId2Entity;
-    public Map<Integer, String> entityId2Username;
+    public IntObjectMap<String> entityId2Username;
     public Map<String, Channel> name2channel;
 
     private Map<String, String> playerAuthKeys = new HashMap<String, String>();
@@ -78,11 +81,11 @@ public class WebPlayerBridge {
         this.lastPlayerID = 0;
         this.channelId2name = new HashMap<ChannelId, String>();
         this.channelId2Entity = new HashMap<ChannelId, Entity>();
-        this.entityId2Username = new HashMap<Integer, String>();
+        this.entityId2Username = new IntObjectHashMap<String>();
         this.name2channel = new HashMap<String, Channel>();
     }
 
-    public boolean newPlayer(final Channel channel, String proposedUsername, String token) {
+    public boolean newPlayer(final Channel channel, BlockBridge blockBridge, String proposedUsername, String token) {
         String theirName;
         boolean authenticated = false;
         if (validateClientAuthKey(proposedUsername, token)) {
@@ -113,8 +116,8 @@ public class WebPlayerBridge {
 
         if (this.entityClass != null) {
             // Spawn an entity in the web user's place
-            Location location = webSocketServerThread.blockBridge.spawnLocation;
-            Entity entity = webSocketServerThread.blockBridge.world.spawn(location, (Class) this.entityClass);
+            Location location = blockBridge.spawnLocation;
+            Entity entity = blockBridge.world.spawn(location, (Class) this.entityClass);
             if (setCustomNames) {
                 entity.setCustomName(theirName); // name tag
                 entity.setCustomNameVisible(true);
@@ -131,9 +134,8 @@ public class WebPlayerBridge {
             channelId2Entity.put(channel.id(), entity);
             entityId2Username.put(entity.getEntityId(), theirName);
 
-            // Notify other web clients (except this one) of this new user
-            webSocketServerThread.broadcastLineExcept(channel.id(), "P," + entity.getEntityId() + "," + webSocketServerThread.playersBridge.encodeLocation(location));
-            webSocketServerThread.broadcastLineExcept(channel.id(), "N," + entity.getEntityId() + "," + theirName);
+            // Notify other web clients in the region who can see it of this new user
+            blockBridge.clientViews.entityMoved(entity.getEntityId(), theirName, location);
         }
 
         // TODO: should this go to Bukkit chat, too/instead? make configurable?
@@ -150,10 +152,12 @@ public class WebPlayerBridge {
         int removed = 0;
         int found = 0;
 
-        // Get all entities within the web radius - note: server implementations may restrict these bounds
-        double r = webSocketServerThread.blockBridge.radius;
-        Collection<Entity> entities = webSocketServerThread.blockBridge.world.getNearbyEntities(
-                webSocketServerThread.blockBridge.spawnLocation, r, r, r);
+        // Get all entities within the web radius of each region - note: server implementations may restrict these bounds
+        Collection<Entity> entities = new ArrayList<Entity>();
+        for (BlockBridge blockBridge : webSocketServerThread.blockBridges.values()) {
+            double r = blockBridge.radius;
+            entities.addAll(blockBridge.world.getNearbyEntities(blockBridge.spawnLocation, r, r, r));
+        }
         for (Entity entity : entities) {
             ++found;
 
@@ -199,6 +203,11 @@ public class WebPlayerBridge {
     }
 
     public void clientMoved(final Channel channel, final double x, final double y, final double z, final double rx, final double ry) {
+        BlockBridge blockBridge = webSocketServerThread.getBlockBridge(channel);
+
+        // What the client can see follows where it is, even if the entity cannot
+        blockBridge.clientViews.clientMoved(channel, x, y, z);
+
         if (this.entityClass == null) {
             // No bukkit entity, no web-bsaed entity for other players either TODO: synthesize a placeholder entity id for web-to-web only?
             return;
@@ -206,22 +215,22 @@ public class WebPlayerBridge {
 
         final Entity entity = this.channelId2Entity.get(channel.id());
 
-        Location location = webSocketServerThread.blockBridge.toBukkitPlayerLocation(x, y, z);
+        Location location = blockBridge.toBukkitPlayerLocation(x, y, z);
 
-        if (constrainToSandbox && !webSocketServerThread.blockBridge.withinSandboxRange(location)) {
+        if (constrainToSandbox && !blockBridge.withinSandboxRange(location)) {
             webSocketServerThread.log(Level.FINEST, "client tried to move outside of sandbox: "+location);
             return;
         }
 
-        // Opposite of PlayerBridge encodeLocation - given negated radians, convert to degrees
+        // Opposite of PlayersBridge getPositionMessage - given negated radians, convert to degrees
         location.setYaw((float)(-rx * 180 / Math.PI));
         location.setPitch((float)(-ry * 180 / Math.PI));
 
         // Move the surrogate entity to represent where the web player is
         entity.teleport(location);
 
-        // Notify other web clients (except this one) they moved
-        webSocketServerThread.broadcastLineExcept(channel.id(), "P,"+entity.getEntityId()+","+webSocketServerThread.playersBridge.encodeLocation(location));
+        // Notify other web clients in the region who can see it they moved
+        blockBridge.clientViews.entityMoved(entity.getEntityId(), entityId2Username.get(entity.getEntityId()), location);
     }
 
     public void clientDisconnected(Channel channel) {
@@ -234,13 +243,16 @@ public class WebPlayerBridge {
 
         channelId2name.remove(channel.id());
 
+        BlockBridge blockBridge = webSocketServerThread.getBlockBridge(channel);
+        blockBridge.clientViews.removeClient(channel);
+
         webSocketServerThread.log(Level.FINEST, "web client disconnected: " + name);
         // TODO: should this go to Bukkit chat, too/instead? make configurable?
         webSocketServerThread.broadcastLine("T," + name + " has disconnected.");
 
         Entity entity = channelId2Entity.get(channel.id());
         if (entity != null) {
-            webSocketServerThread.broadcastLineExcept(channel.id(), "D,"+entity.getEntityId());
+            blockBridge.clientViews.entityRemoved(entity.getEntityId());
 
             channelId2Entity.remove(channel.id());
             entityId2Username.remove(entity.getEntityId());
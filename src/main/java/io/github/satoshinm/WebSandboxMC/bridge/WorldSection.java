@@ -0,0 +1,256 @@
+package io.github.satoshinm.WebSandboxMC.bridge;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * A fixed-size cube of the world snapshot, compressed independently so a block change only needs its own
+ * section recompressed, and sections of only air need not be sent at all
+ */
+public class WorldSection {
+
+    public static final int SIZE = 16;
+
+    // Payload formats of the binary blob following the "b," line, see compressTypes()
+    public static final int FORMAT_SHORTS = 0; // a little-endian short per block
+    public static final int FORMAT_PALETTE = 1; // a palette of types, then runs of palette indices
+    private static final int FORMATS = 2;
+
+    // Offsets of this section's corner from the sandbox corner, along y, x, z
+    public final int i0, j0, k0;
+    // Number of blocks in this section along y, x, z; less than SIZE at the far edges of the sandbox
+    public final int height, width, depth;
+
+    private short[] types; // null while every block is uniformType, as with all air or solid stone
+    private short uniformType;
+    private int nonAirBlocks;
+
+    private final ByteBuf[] compressedTypes; // by format, null until compressed or after the section changes
+
+    private final ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+
+    // Compression runs on the scan and main threads, each reusing its own output chunk and a deflater from a small
+    // pool; deflaters hold native memory until ended, so those not fitting in the pool are ended after use, and the
+    // pooled ones by releaseDeflaters()
+    private static final int DEFLATE_CHUNK_SIZE = 4096;
+    private static final int MAX_POOLED_DEFLATERS = 4;
+    private static final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<Deflater>(MAX_POOLED_DEFLATERS);
+    private static final ThreadLocal<byte[]> deflateChunks = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[DEFLATE_CHUNK_SIZE];
+        }
+    };
+
+    public WorldSection(int i0, int j0, int k0, int height, int width, int depth) {
+        this.i0 = i0;
+        this.j0 = j0;
+        this.k0 = k0;
+        this.height = height;
+        this.width = width;
+        this.depth = depth;
+
+        this.types = null;
+        this.uniformType = 0;
+        this.nonAirBlocks = 0;
+        this.compressedTypes = new ByteBuf[FORMATS];
+    }
+
+    // di, dj, dk are offsets within this section along y, x, z, in the same order as sent to the client
+    private int index(int di, int dj, int dk) {
+        return (di * width + dj) * depth + dk;
+    }
+
+    public int getType(int di, int dj, int dk) {
+        return getType(index(di, dj, dk));
+    }
+
+    public void setType(int di, int dj, int dk, int type) {
+        int previous = getType(di, dj, dk);
+        if (previous == type) {
+            return;
+        }
+
+        if (types == null) {
+            types = new short[height * width * depth];
+            Arrays.fill(types, uniformType);
+        }
+
+        types[index(di, dj, dk)] = (short) type;
+        release();
+
+        if (previous == 0) ++nonAirBlocks;
+        if (type == 0) --nonAirBlocks;
+
+        if (nonAirBlocks == 0) {
+            types = null;
+            uniformType = 0;
+        }
+    }
+
+    // Drop the types array if every block is the same, most sections deep underground or in the sky are
+    public void compact() {
+        if (types == null) {
+            return;
+        }
+
+        for (short type : types) {
+            if (type != types[0]) {
+                return;
+            }
+        }
+
+        uniformType = types[0];
+        types = null;
+    }
+
+    public boolean isEmpty() {
+        return nonAirBlocks == 0;
+    }
+
+    // Get the compressed block types of this section to send to a client, the caller is responsible for releasing it
+    public ByteBuf retainCompressedTypes(int format) {
+        if (compressedTypes[format] == null) {
+            compressedTypes[format] = compressTypes(format);
+        }
+
+        return compressedTypes[format].retainedDuplicate();
+    }
+
+    private ByteBuf compressTypes(int format) {
+        int count = height * width * depth;
+        ByteBuf data = allocator.heapBuffer(count * 2);
+        try {
+            if (format == FORMAT_PALETTE) {
+                writePaletteTypes(data, count);
+            } else {
+                for (int n = 0; n < count; ++n) {
+                    data.writeShortLE(getType(n));
+                }
+            }
+
+            return deflate(data);
+        } finally {
+            data.release();
+        }
+    }
+
+    // Compress with zlib headers, note _not_ gzip since that adds
+    // gzip headers (see https://stackoverflow.com/questions/1838699/how-can-i-decompress-a-gzip-stream-with-zlib)
+    // which miniz does not support (https://github.com/richgel999/miniz/blob/ec028ffe66e2da67eed208de3db66fcf72b24dac/miniz.h#L33)
+    // Input is read in place from the heap buffer, and output is written in fixed-size chunks to a pooled direct
+    // buffer, so no more than a chunk is held besides the buffers themselves.
+    private ByteBuf deflate(ByteBuf data) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater();
+        }
+        byte[] chunk = deflateChunks.get();
+
+        ByteBuf compressed = allocator.directBuffer(DEFLATE_CHUNK_SIZE);
+        try {
+            deflater.setInput(data.array(), data.arrayOffset() + data.readerIndex(), data.readableBytes());
+            deflater.finish();
+            while (!deflater.finished()) {
+                int length = deflater.deflate(chunk);
+                compressed.writeBytes(chunk, 0, length);
+            }
+        } catch (RuntimeException ex) {
+            compressed.release();
+            throw ex;
+        } finally {
+            deflater.reset();
+            if (!deflaters.offer(deflater)) {
+                deflater.end();
+            }
+        }
+
+        return compressed;
+    }
+
+    // End the pooled deflaters, when the plugin is disabled
+    public static void releaseDeflaters() {
+        Deflater deflater;
+        while ((deflater = deflaters.poll()) != null) {
+            deflater.end();
+        }
+    }
+
+    /* Palette format, most sections have only a handful of distinct types in long runs:
+     *   short palette size, then each type in the palette as a short
+     *   byte bits per palette index, the fewest bits to hold palette size - 1 (0 if only one type)
+     *   runs covering all blocks in order, each a varint of (run length << bits per index | palette index)
+     * Varints are little-endian base 128, as in protobuf. All shorts are little-endian.
+     */
+    private void writePaletteTypes(ByteBuf data, int count) {
+        // Palettes are small, so look up types by linear search, once per run rather than once per block
+        int[] palette = new int[count];
+        int paletteSize = 0;
+        for (int n = 0; n < count; n = runEnd(n, count)) {
+            if (paletteIndexOf(palette, paletteSize, getType(n)) == -1) {
+                palette[paletteSize++] = getType(n);
+            }
+        }
+
+        int bitsPerIndex = 32 - Integer.numberOfLeadingZeros(paletteSize - 1);
+
+        data.writeShortLE(paletteSize);
+        for (int p = 0; p < paletteSize; ++p) {
+            data.writeShortLE(palette[p]);
+        }
+        data.writeByte(bitsPerIndex);
+
+        for (int n = 0; n < count; ) {
+            int end = runEnd(n, count);
+            writeVarInt(data, (end - n) << bitsPerIndex | paletteIndexOf(palette, paletteSize, getType(n)));
+            n = end;
+        }
+    }
+
+    // Type at an index into the types array, in the order sent to the client
+    private int getType(int n) {
+        return types == null ? uniformType : types[n];
+    }
+
+    // Index just past the run of identical types starting at n
+    private int runEnd(int n, int count) {
+        int type = getType(n);
+        int end = n + 1;
+        while (end < count && getType(end) == type) {
+            ++end;
+        }
+        return end;
+    }
+
+    private static int paletteIndexOf(int[] palette, int paletteSize, int type) {
+        for (int p = 0; p < paletteSize; ++p) {
+            if (palette[p] == type) {
+                return p;
+            }
+        }
+        return -1;
+    }
+
+    public static void writeVarInt(ByteBuf data, int value) {
+        while ((value & ~0x7f) != 0) {
+            data.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        data.writeByte(value);
+    }
+
+    public void release() {
+        for (int format = 0; format < FORMATS; ++format) {
+            if (compressedTypes[format] != null) {
+                compressedTypes[format].release();
+                compressedTypes[format] = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package io.github.satoshinm.WebSandboxMC.bridge;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Web block types of the whole sandbox, scanned once and then kept up to date by block updates, so every
+ * joining client can be sent the same compressed world instead of rescanning the Bukkit world for each join
+ */
+public class WorldSnapshot {
+
+    private final int size; // blocks along each edge of the sandbox cube, radius * 2
+    private final int y_offset; // added to i to get the web y coordinate
+    private final int sectionsPerEdge;
+    private final WorldSection[] sections;
+    private final IntObjectHashMap<Byte> lightLevels; // web light level of each light source, by index
+    private final SortedMap<Integer, String> signCommands; // by index
+    private ByteBuf blockDataCommandLines; // lighting and sign commands as lines, null until needed or after a change
+
+    public WorldSnapshot(int size, int y_offset) {
+        this.size = size;
+        this.y_offset = y_offset;
+        this.sectionsPerEdge = sectionsPerEdge(size);
+        this.sections = new WorldSection[sectionsPerEdge * sectionsPerEdge * sectionsPerEdge];
+
+        for (int si = 0; si < sectionsPerEdge; ++si) {
+            for (int sj = 0; sj < sectionsPerEdge; ++sj) {
+                for (int sk = 0; sk < sectionsPerEdge; ++sk) {
+                    int i0 = si * WorldSection.SIZE;
+                    int j0 = sj * WorldSection.SIZE;
+                    int k0 = sk * WorldSection.SIZE;
+                    sections[sectionIndex(si, sj, sk)] = new WorldSection(i0, j0, k0,
+                            Math.min(WorldSection.SIZE, size - i0),
+                            Math.min(WorldSection.SIZE, size - j0),
+                            Math.min(WorldSection.SIZE, size - k0));
+                }
+            }
+        }
+
+        this.lightLevels = new IntObjectHashMap<Byte>();
+        this.signCommands = new TreeMap<Integer, String>();
+    }
+
+    private int index(int i, int j, int k) {
+        return (i * size + j) * size + k;
+    }
+
+    private int sectionIndex(int si, int sj, int sk) {
+        return sectionIndex(sectionsPerEdge, si, sj, sk);
+    }
+
+    public static int sectionsPerEdge(int size) {
+        return (size + WorldSection.SIZE - 1) / WorldSection.SIZE;
+    }
+
+    // Index of a section from its position in sections along y, x, z, the same in every snapshot of this size
+    public static int sectionIndex(int sectionsPerEdge, int si, int sj, int sk) {
+        return (si * sectionsPerEdge + sj) * sectionsPerEdge + sk;
+    }
+
+    public WorldSection getSection(int sectionIndex) {
+        return sections[sectionIndex];
+    }
+
+    // i, j, k are offsets from the sandbox corner along y, x, z, respectively
+    private WorldSection getSection(int i, int j, int k) {
+        return sections[sectionIndex(i / WorldSection.SIZE, j / WorldSection.SIZE, k / WorldSection.SIZE)];
+    }
+
+    public int getType(int i, int j, int k) {
+        return getSection(i, j, k).getType(i % WorldSection.SIZE, j % WorldSection.SIZE, k % WorldSection.SIZE);
+    }
+
+    public void setType(int i, int j, int k, int type) {
+        getSection(i, j, k).setType(i % WorldSection.SIZE, j % WorldSection.SIZE, k % WorldSection.SIZE, type);
+    }
+
+    public int getLightLevel(int i, int j, int k) {
+        Byte lightLevel = lightLevels.get(index(i, j, k));
+        return lightLevel != null ? lightLevel : 0;
+    }
+
+    // Set the web light level of the block at this position, 0 if it is not a light source
+    public void setLightLevel(int i, int j, int k, int lightLevel) {
+        int index = index(i, j, k);
+        Byte previous;
+        if (lightLevel == 0) {
+            previous = lightLevels.remove(index);
+        } else {
+            previous = lightLevels.put(index, Byte.valueOf((byte) lightLevel));
+        }
+
+        if ((previous != null ? previous : 0) != lightLevel) {
+            releaseBlockDataCommandLines();
+        }
+    }
+
+    // Set the sign command for the block at this position, or null if it has none
+    public void setSignCommand(int i, int j, int k, String command) {
+        int index = index(i, j, k);
+        String previous;
+        if (command == null) {
+            previous = signCommands.remove(index);
+        } else {
+            previous = signCommands.put(index, command);
+        }
+
+        if (previous == null ? command != null : !previous.equals(command)) {
+            releaseBlockDataCommandLines();
+        }
+    }
+
+    // Get all lighting and sign commands, packed into one buffer of newline-terminated lines to send in a single
+    // frame, or null if there are none; the caller is responsible for releasing it
+    public ByteBuf retainBlockDataCommandLines() {
+        if (lightLevels.isEmpty() && signCommands.isEmpty()) {
+            return null;
+        }
+
+        if (blockDataCommandLines == null) {
+            blockDataCommandLines = PooledByteBufAllocator.DEFAULT.directBuffer();
+            for (IntObjectMap.PrimitiveEntry<Byte> entry : lightLevels.entries()) {
+                int index = entry.key();
+                int i = index / size / size;
+                int j = index / size % size;
+                int k = index % size;
+                ByteBufUtil.writeUtf8(blockDataCommandLines, "L,0,0," + j + "," + (i + y_offset) + "," + k + "," + entry.value());
+                blockDataCommandLines.writeByte('\n');
+            }
+            for (String command : signCommands.values()) {
+                ByteBufUtil.writeUtf8(blockDataCommandLines, command);
+                blockDataCommandLines.writeByte('\n');
+            }
+        }
+
+        return blockDataCommandLines.retainedDuplicate();
+    }
+
+    private void releaseBlockDataCommandLines() {
+        if (blockDataCommandLines != null) {
+            blockDataCommandLines.release();
+            blockDataCommandLines = null;
+        }
+    }
+
+    public List<WorldSection> getAllSections() {
+        return new ArrayList<WorldSection>(Arrays.asList(sections));
+    }
+
+    // Sections with any blocks to send, all air sections are skipped
+    public List<WorldSection> getNonEmptySections() {
+        List<WorldSection> nonEmptySections = new ArrayList<WorldSection>();
+        for (WorldSection section : sections) {
+            if (!section.isEmpty()) {
+                nonEmptySections.add(section);
+            }
+        }
+        return nonEmptySections;
+    }
+
+    // Compact and compress all sections and block data ahead of time, so they are ready to send
+    public void compress() {
+        ByteBuf lines = retainBlockDataCommandLines();
+        if (lines != null) {
+            lines.release();
+        }
+
+        for (WorldSection section : sections) {
+            section.compact();
+            if (!section.isEmpty()) {
+                section.retainCompressedTypes(WorldSection.FORMAT_SHORTS).release();
+                section.retainCompressedTypes(WorldSection.FORMAT_PALETTE).release();
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        for (WorldSection section : sections) {
+            if (!section.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void release() {
+        for (WorldSection section : sections) {
+            section.release();
+        }
+        releaseBlockDataCommandLines();
+    }
+}
@@ -2,41 +2,94 @@
 package io.github.satoshinm.WebSandboxMC.bukkit;
 
 import io.github.satoshinm.WebSandboxMC.bridge.BlockBridge;
+import io.github.satoshinm.WebSandboxMC.bridge.ChunkFilter;
 import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.block.Block;
+import org.bukkit.block.BlockState;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
 import org.bukkit.event.block.BlockBreakEvent;
 import org.bukkit.event.block.BlockPlaceEvent;
+import org.bukkit.event.block.BlockRedstoneEvent;
 import org.bukkit.event.block.SignChangeEvent;
 
+import java.util.Collection;
+
 public class BlockListener implements Listener {
 
-    public BlockBridge blockBridge;
+    public Collection<BlockBridge> blockBridges; // one per region, each ignores changes outside of its own
+    private ChunkFilter chunkFilter;
+
+    public BlockListener(Collection<BlockBridge> blockBridges, ChunkFilter chunkFilter) {
+        this.blockBridges = blockBridges;
+        this.chunkFilter = chunkFilter;
+    }
 
-    public BlockListener(BlockBridge blockBridge) {
-        this.blockBridge = blockBridge;
+    // Most block changes are nowhere near any sandbox, check without allocating a Location
+    private boolean mayBeInSandbox(Block block) {
+        return chunkFilter.mayContain(block.getWorld(), block.getX() >> 4, block.getZ() >> 4);
     }
 
     @EventHandler(ignoreCancelled = true)
     public void onBlockBreak(BlockBreakEvent event) {
         Block block = event.getBlock();
+        if (!mayBeInSandbox(block)) {
+            return;
+        }
         Location location = block.getLocation();
-        blockBridge.notifyBlockUpdate(location, Material.AIR, null);
+        for (BlockBridge blockBridge : blockBridges) {
+            blockBridge.notifyBlockUpdate(location, Material.AIR, (byte) 0, null);
+        }
     }
 
     @EventHandler(ignoreCancelled = true)
     public void onBlockPlace(BlockPlaceEvent event) {
         Block block = event.getBlock();
+        if (!mayBeInSandbox(block)) {
+            return;
+        }
+        Material material = block.getType();
+        BlockState blockState = null;
 
-        blockBridge.notifyBlockUpdate(block.getLocation(), block.getType(), block.getState());
+        for (BlockBridge blockBridge : blockBridges) {
+            if (blockState == null && blockBridge.needsBlockState(material)) {
+                blockState = block.getState();
+            }
+            blockBridge.notifyBlockUpdate(block.getLocation(), material, block.getData(), blockState);
+        }
     }
     @EventHandler(ignoreCancelled = true)
     public void onSignChange(SignChangeEvent event) {
         Block block = event.getBlock();
+        if (!mayBeInSandbox(block)) {
+            return;
+        }
+        BlockState blockState = block.getState();
+
+        for (BlockBridge blockBridge : blockBridges) {
+            blockBridge.notifySignChange(block.getLocation(), block.getType(), blockState, event.getLines());
+        }
+    }
+
+    @EventHandler
+    public void onBlockRedstone(BlockRedstoneEvent event) {
+        Block block = event.getBlock();
+        if (!mayBeInSandbox(block)) {
+            return;
+        }
+        Material material = block.getType();
+        if (material != Material.REDSTONE_LAMP_OFF && material != Material.REDSTONE_LAMP_ON) {
+            return;
+        }
 
-        blockBridge.notifySignChange(block.getLocation(), block.getType(), block.getState(), event.getLines());
+        // Fired just before the lamp toggles, so send what it is about to become
+        Material newMaterial = event.getNewCurrent() > 0 ? Material.REDSTONE_LAMP_ON : Material.REDSTONE_LAMP_OFF;
+        if (newMaterial != material) {
+            for (BlockBridge blockBridge : blockBridges) {
+                blockBridge.notifyBlockUpdate(block.getLocation(), newMaterial, (byte) 0, null);
+            }
+        }
     }
 
     // TODO: BlockBurnEvent
@@ -49,7 +102,6 @@ public class BlockListener implements Listener {
     // TODO: BlockMultiPlaceEvent
     // TODO: BlockPhysicsEvent
     // TODO: BlockPiston*Event
-    // TODO: BlockRedstoneEvent
     // TODO: BlockSpreadEvent
     // TODO: CauldronLevelChangeEvent
     // TODO: FurnaceBurnEvent (change light levels)
@@ -7,6 +7,7 @@ import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.plugin.Plugin;
 
 import java.io.File;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.logging.Level;
 
@@ -24,6 +25,14 @@ public class SettingsBukkit extends Settings {
         config.addDefault("http.publicURL", this.publicURL);
         config.addDefault("http.takeover", this.takeover);
         config.addDefault("http.unbind_method", this.unbindMethod);
+        config.addDefault("http.transport", this.transport);
+        config.addDefault("http.boss_threads", this.bossThreads);
+        config.addDefault("http.worker_threads", this.workerThreads);
+        config.addDefault("http.share_event_loop", this.shareEventLoop);
+        config.addDefault("http.tcp_nodelay", this.tcpNoDelay);
+        config.addDefault("http.reuse_port", this.reusePort);
+        config.addDefault("http.send_buffer_size", this.sendBufferSize);
+        config.addDefault("http.receive_buffer_size", this.receiveBufferSize);
 
         config.addDefault("mc.debug", this.debug);
         config.addDefault("mc.netty_log_info", this.nettyLogInfo);
@@ -39,6 +48,7 @@ public class SettingsBukkit extends Settings {
         config.addDefault("mc.y_center", this.y_center);
         config.addDefault("mc.z_center", this.z_center);
         config.addDefault("mc.radius", this.radius);
+        config.addDefault("mc.regions", new HashMap<String, Object>());
         config.addDefault("mc.clickable_links", this.clickableLinks);
         config.addDefault("mc.clickable_links_tellraw", this.clickableLinksTellraw);
 
@@ -53,6 +63,14 @@ public class SettingsBukkit extends Settings {
         config.addDefault("nc.see_chat", this.seeChat);
         config.addDefault("nc.see_players", this.seePlayers);
         config.addDefault("nc.see_time", this.seeTime);
+        config.addDefault("nc.view_distance", this.viewDistance);
+        config.addDefault("nc.moves_per_second", this.movesPerSecond);
+        config.addDefault("nc.command_budget_ms", this.commandBudgetMillis);
+        config.addDefault("nc.block_edit_budget_ms", this.blockEditBudgetMillis);
+        config.addDefault("nc.write_buffer_high_water_mark", this.writeBufferHighWaterMark);
+        config.addDefault("nc.write_buffer_low_water_mark", this.writeBufferLowWaterMark);
+        config.addDefault("nc.slow_client_limit", this.slowClientLimit);
+        config.addDefault("nc.slow_client_action", this.slowClientAction);
         config.addDefault("nc.creative_mode", this.creativeMode);
 
         config.addDefault("nc.blocks_to_web_override", this.blocksToWebOverride);
@@ -61,6 +79,14 @@ public class SettingsBukkit extends Settings {
         this.httpPort = plugin.getConfig().getInt("http.port");
         this.publicURL = plugin.getConfig().getString("http.publicURL");
         this.takeover = plugin.getConfig().getBoolean("http.takeover");
+        this.transport = plugin.getConfig().getString("http.transport");
+        this.bossThreads = plugin.getConfig().getInt("http.boss_threads");
+        this.workerThreads = plugin.getConfig().getInt("http.worker_threads");
+        this.shareEventLoop = plugin.getConfig().getBoolean("http.share_event_loop");
+        this.tcpNoDelay = plugin.getConfig().getBoolean("http.tcp_nodelay");
+        this.reusePort = plugin.getConfig().getBoolean("http.reuse_port");
+        this.sendBufferSize = plugin.getConfig().getInt("http.send_buffer_size");
+        this.receiveBufferSize = plugin.getConfig().getInt("http.receive_buffer_size");
         this.unbindMethod = plugin.getConfig().getString("http.unbind_method");
 
         this.debug = plugin.getConfig().getBoolean("mc.debug");
@@ -80,6 +106,25 @@ public class SettingsBukkit extends Settings {
         this.z_center = plugin.getConfig().getInt("mc.z_center");
         this.radius = plugin.getConfig().getInt("mc.radius");
 
+        ConfigurationSection regionsSection = plugin.getConfig().getConfigurationSection("mc.regions");
+        if (regionsSection != null) {
+            for (String name : regionsSection.getKeys(false)) {
+                ConfigurationSection region = regionsSection.getConfigurationSection(name);
+                if (region == null || name.equals(DEFAULT_REGION)) {
+                    this.log(Level.WARNING, "mc.regions invalid region ignored: " + name);
+                    continue;
+                }
+
+                // Anything not given is the same as the default region
+                this.regions.add(new Region(name,
+                        region.getString("world", this.world),
+                        region.getInt("x_center", this.x_center),
+                        region.getInt("y_center", this.y_center),
+                        region.getInt("z_center", this.z_center),
+                        region.getInt("radius", this.radius)));
+            }
+        }
+
         this.clickableLinks = plugin.getConfig().getBoolean("mc.clickable_links");
         this.clickableLinksTellraw = plugin.getConfig().getBoolean("mc.clickable_links_tellraw");
 
@@ -94,6 +139,14 @@ public class SettingsBukkit extends Settings {
         this.seeChat = plugin.getConfig().getBoolean("nc.see_chat");
         this.seePlayers = plugin.getConfig().getBoolean("nc.see_players");
         this.seeTime = plugin.getConfig().getBoolean("nc.see_time");
+        this.viewDistance = plugin.getConfig().getInt("nc.view_distance");
+        this.movesPerSecond = plugin.getConfig().getInt("nc.moves_per_second");
+        this.commandBudgetMillis = plugin.getConfig().getInt("nc.command_budget_ms");
+        this.blockEditBudgetMillis = plugin.getConfig().getInt("nc.block_edit_budget_ms");
+        this.writeBufferHighWaterMark = plugin.getConfig().getInt("nc.write_buffer_high_water_mark");
+        this.writeBufferLowWaterMark = plugin.getConfig().getInt("nc.write_buffer_low_water_mark");
+        this.slowClientLimit = plugin.getConfig().getInt("nc.slow_client_limit");
+        this.slowClientAction = plugin.getConfig().getString("nc.slow_client_action");
         this.creativeMode = plugin.getConfig().getBoolean("nc.creative_mode");
         if (plugin.getConfig().getConfigurationSection("nc.blocks_to_web") != null) {
             this.log(Level.WARNING, "blocks_to_web is now ignored, you can remove it or add to blocks_to_web_override instead");
@@ -134,4 +187,11 @@ public class SettingsBukkit extends Settings {
         }
         Bukkit.getScheduler().scheduleSyncDelayedTask(this.plugin, runnable);
     }
+
+    public void scheduleAsyncTask(Runnable runnable) {
+        if (!plugin.isEnabled()) {
+            return;
+        }
+        Bukkit.getScheduler().runTaskAsynchronously(this.plugin, runnable);
+    }
 }
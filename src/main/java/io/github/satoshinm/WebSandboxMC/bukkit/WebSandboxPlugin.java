@@ -5,6 +5,7 @@ import io.github.satoshinm.WebSandboxMC.Settings;
 import io.github.satoshinm.WebSandboxMC.bridge.BlockBridge;
 import io.github.satoshinm.WebSandboxMC.bridge.PlayersBridge;
 import io.github.satoshinm.WebSandboxMC.bridge.WebPlayerBridge;
+import io.github.satoshinm.WebSandboxMC.bridge.WorldSection;
 import io.github.satoshinm.WebSandboxMC.ws.WebSocketServerThread;
 import org.bukkit.Bukkit;
 import org.bukkit.Server;
@@ -32,6 +33,10 @@ public class WebSandboxPlugin extends JavaPlugin {
     @Override
     public void onDisable() {
         webSocketServerThread.webPlayerBridge.deleteAllEntities();
+        for (BlockBridge blockBridge : webSocketServerThread.blockBridges.values()) {
+            blockBridge.releaseWorldSnapshot();
+        }
+        WorldSection.releaseDeflaters();
 
         webSocketServerThread.interrupt();
     }
@@ -51,14 +56,17 @@ public class WebSandboxPlugin extends JavaPlugin {
 
                 webSocketServerThread = new WebSocketServerThread(settings);
 
-                webSocketServerThread.blockBridge = new BlockBridge(webSocketServerThread, settings);
+                for (Settings.Region region : settings.getAllRegions()) {
+                    webSocketServerThread.addBlockBridge(new BlockBridge(webSocketServerThread, settings, region));
+                }
                 webSocketServerThread.playersBridge = new PlayersBridge(webSocketServerThread, settings);
                 webSocketServerThread.webPlayerBridge = new WebPlayerBridge(webSocketServerThread, settings);
 
                 // Register our events
                 PluginManager pm = getServer().getPluginManager();
 
-                pm.registerEvents(new BlockListener(webSocketServerThread.blockBridge), plugin);
+                pm.registerEvents(new BlockListener(webSocketServerThread.blockBridges.values(),
+                        webSocketServerThread.chunkFilter), plugin);
                 pm.registerEvents(new PlayersListener(webSocketServerThread.playersBridge), plugin);
                 pm.registerEvents(new EntityListener(webSocketServerThread.webPlayerBridge), plugin);
 
@@ -67,6 +75,17 @@ public class WebSandboxPlugin extends JavaPlugin {
 
                 // Run the websocket server
                 webSocketServerThread.start();
+
+                // Run web clients' commands, movement and block changes, and send them everything from each tick together
+                Bukkit.getScheduler().scheduleSyncRepeatingTask(plugin, new Runnable() {
+                    @Override
+                    public void run() {
+                        webSocketServerThread.runCommands();
+                        webSocketServerThread.applyMoves();
+                        webSocketServerThread.applyBlockEdits();
+                        webSocketServerThread.flushOutbound();
+                    }
+                }, 1, 1);
             }
         });
     }
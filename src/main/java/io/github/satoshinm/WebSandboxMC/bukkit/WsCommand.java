@@ -1,5 +1,6 @@
 package io.github.satoshinm.WebSandboxMC.bukkit;
 
+import io.github.satoshinm.WebSandboxMC.bridge.BlockBridge;
 import io.github.satoshinm.WebSandboxMC.ws.WebSocketServerThread;
 import io.netty.channel.Channel;
 import org.bukkit.Location;
@@ -41,6 +42,13 @@ public class WsCommand implements CommandExecutor {
             sender.sendMessage(size + " web player(s) connected:");
 
             boolean verbose = split.length >= 2 && split[1].equals("verbose");
+            if (verbose) {
+                sender.sendMessage(webSocketServerThread.getCommandStats());
+                sender.sendMessage(webSocketServerThread.getInboundStats());
+                for (BlockBridge region : webSocketServerThread.blockBridges.values()) {
+                    sender.sendMessage(region.name + ": " + region.getClientBlockEditStats());
+                }
+            }
 
             int i = 1;
             for (String name: webSocketServerThread.webPlayerBridge.name2channel.keySet()) { // TODO: sort?
@@ -58,7 +66,19 @@ public class WsCommand implements CommandExecutor {
                     }
                 }
 
-                sender.sendMessage(i + ". " + name + ", " + ip + entityInfo);
+                String regionInfo = "";
+                if (webSocketServerThread.blockBridges.size() > 1) {
+                    regionInfo = " in " + webSocketServerThread.getBlockBridge(channel).name;
+                }
+
+                sender.sendMessage(i + ". " + name + ", " + ip + regionInfo + entityInfo);
+
+                if (verbose) {
+                    String outboundStats = webSocketServerThread.getOutboundStats(channel);
+                    if (outboundStats != null) {
+                        sender.sendMessage("   " + outboundStats);
+                    }
+                }
                 ++i;
             }
             return true;
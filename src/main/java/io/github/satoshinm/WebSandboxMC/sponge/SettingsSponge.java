@@ -91,4 +91,9 @@ public class SettingsSponge extends Settings {
     public void scheduleSyncTask(Runnable runnable) {
         //TODO: Task.builder().
     }
+
+    @Override
+    public void scheduleAsyncTask(Runnable runnable) {
+        Task.builder().async().execute(runnable).submit(plugin);
+    }
 }
@@ -0,0 +1,76 @@
+package io.github.satoshinm.WebSandboxMC.ws;
+
+import io.github.satoshinm.WebSandboxMC.bridge.WorldSection;
+import io.netty.buffer.ByteBuf;
+import io.netty.util.CharsetUtil;
+
+/**
+ * Protocol version 2, the most frequent messages are binary instead of text:
+ *   one byte opcode, 0x80 or above so it cannot be mistaken for the first character of a text line
+ *   entity ids, block types and lengths as varints, coordinates as zigzag varints
+ *   entity positions in fixed point, 1/32 of a block, and angles as one byte, 1/256 of a turn
+ *   entity positions after the first as deltas from the last position sent to the client
+ * Varints are little-endian base 128, as in the palette world format. Other commands are still sent as lines of
+ * text, and both may be mixed in the same frame.
+ */
+class BinaryProtocolWriter extends TextProtocolWriter {
+
+    private static final int OPCODE_BLOCK = 0x80; // x, y, z, type
+    private static final int OPCODE_POSITION = 0x81; // id, x, y, z, rx, ry
+    private static final int OPCODE_NAME = 0x82; // id, length, UTF-8 name
+    private static final int OPCODE_DELETE = 0x83; // id
+    private static final int OPCODE_POSITION_DELTA = 0x84; // id, dx, dy, dz, rx, ry
+
+    @Override
+    public void writeBlock(ByteBuf out, int x, int y, int z, int type) {
+        out.writeByte(OPCODE_BLOCK);
+        writeSignedVarInt(out, x);
+        writeSignedVarInt(out, y);
+        writeSignedVarInt(out, z);
+        WorldSection.writeVarInt(out, type);
+    }
+
+    @Override
+    public void writePosition(ByteBuf out, int id, EntityPosition position) {
+        out.writeByte(OPCODE_POSITION);
+        WorldSection.writeVarInt(out, id);
+        writeSignedVarInt(out, position.x);
+        writeSignedVarInt(out, position.y);
+        writeSignedVarInt(out, position.z);
+        out.writeByte(position.rx);
+        out.writeByte(position.ry);
+    }
+
+    // Angles are no bigger as deltas, so are still sent whole
+    @Override
+    public void writePositionDelta(ByteBuf out, int id, EntityPosition previous, EntityPosition position) {
+        out.writeByte(OPCODE_POSITION_DELTA);
+        WorldSection.writeVarInt(out, id);
+        writeSignedVarInt(out, position.x - previous.x);
+        writeSignedVarInt(out, position.y - previous.y);
+        writeSignedVarInt(out, position.z - previous.z);
+        out.writeByte(position.rx);
+        out.writeByte(position.ry);
+    }
+
+    @Override
+    public void writeName(ByteBuf out, int id, String name) {
+        out.writeByte(OPCODE_NAME);
+        WorldSection.writeVarInt(out, id);
+
+        byte[] bytes = name.getBytes(CharsetUtil.UTF_8);
+        WorldSection.writeVarInt(out, bytes.length);
+        out.writeBytes(bytes);
+    }
+
+    @Override
+    public void writeDelete(ByteBuf out, int id) {
+        out.writeByte(OPCODE_DELETE);
+        WorldSection.writeVarInt(out, id);
+    }
+
+    // Zigzag encoded, so small negative values are as short as small positive ones
+    private static void writeSignedVarInt(ByteBuf out, int value) {
+        WorldSection.writeVarInt(out, (value << 1) ^ (value >> 31));
+    }
+}
@@ -0,0 +1,41 @@
+package io.github.satoshinm.WebSandboxMC.ws;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.CharsetUtil;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One command web clients can send, by its opcode, the first character. Each is first prepared on the Netty thread
+ * which received it, to parse and check it and do whatever is safe there, then the rest runs where its policy says.
+ */
+abstract class ClientCommand {
+
+    enum Policy {
+        EVENT_LOOP, // entirely done when prepared
+        ASYNC, // on a Bukkit async worker, for slow work not touching the world
+        MAIN_THREAD // on the server thread in the next tick, for changing the world
+    }
+
+    final char opcode;
+    final Policy policy;
+    final boolean requiresLogin;
+    final AtomicLong received = new AtomicLong();
+    final AtomicLong rejected = new AtomicLong(); // by the checks when prepared
+
+    ClientCommand(char opcode, Policy policy, boolean requiresLogin) {
+        this.opcode = opcode;
+        this.policy = policy;
+        this.requiresLogin = requiresLogin;
+    }
+
+    // Parse and check the command, on the Netty thread, or on the main thread if it arrived while its client was
+    // still joining; returns what is left to run according to the policy, or null if nothing is. Throws
+    // CorruptedFrameException if it is malformed.
+    abstract Runnable prepare(ChannelHandlerContext ctx, ByteBuf content, ClientCommandDecoder decoder);
+
+    static String text(ByteBuf content) {
+        return content.toString(CharsetUtil.UTF_8).trim();
+    }
+}
@@ -0,0 +1,171 @@
+package io.github.satoshinm.WebSandboxMC.ws;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.CorruptedFrameException;
+
+/**
+ * Parses the most frequent commands from web clients, block (B) and position (P) updates, straight from the
+ * received frame into its fields, without building a String or splitting it. One per connection, reused for every
+ * frame, only used from the connection's Netty thread.
+ */
+class ClientCommandDecoder {
+
+    static final byte OTHER = 0; // any other command, to be handled as text
+    static final byte BLOCK = 'B'; // B,x,y,z,type
+    static final byte POSITION = 'P'; // P,x,y,z,rx,ry
+
+    private static final int MAX_DIGITS = 18; // significant digits which fit in a long
+
+    // Fields of the last command decoded, web coordinates
+    int blockX, blockY, blockZ, blockType;
+    double x, y, z, rx, ry;
+
+    private ByteBuf in;
+    private int index, end;
+
+    // Decode one command, returns its opcode, or OTHER if it is left as text; throws CorruptedFrameException
+    // if it is malformed
+    byte decode(ByteBuf in) {
+        this.in = in;
+        this.index = in.readerIndex();
+        this.end = in.writerIndex();
+
+        // Trailing whitespace is allowed, as it was when split from a trimmed String
+        while (end > index && (in.getByte(end - 1) & 0xff) <= ' ') {
+            --end;
+        }
+
+        if (end - index < 2 || in.getByte(index + 1) != ',') {
+            return OTHER;
+        }
+
+        byte opcode = in.getByte(index);
+        index += 2;
+        if (opcode == BLOCK) {
+            blockX = readInt();
+            blockY = readInt();
+            blockZ = readInt();
+            blockType = readInt();
+        } else if (opcode == POSITION) {
+            x = readDouble();
+            y = readDouble();
+            z = readDouble();
+            rx = readDouble();
+            ry = readDouble();
+        } else {
+            return OTHER;
+        }
+
+        if (index != end + 1) {
+            throw new CorruptedFrameException("too many fields");
+        }
+        this.in = null;
+        return opcode;
+    }
+
+    // Read a field up to the next comma or the end, and past the comma
+    private int readInt() {
+        boolean negative = readSign();
+        long value = 0;
+        int digits = 0;
+        while (index < end && isDigit(in.getByte(index))) {
+            value = value * 10 + (in.getByte(index++) - '0');
+            if (++digits > 10) {
+                throw new CorruptedFrameException("integer too long");
+            }
+        }
+        if (digits == 0) {
+            throw new CorruptedFrameException("expected integer");
+        }
+        if (negative) {
+            value = -value;
+        }
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new CorruptedFrameException("integer out of range");
+        }
+
+        endField();
+        return (int) value;
+    }
+
+    // Decimal as JavaScript prints numbers, such as -12.5 or 1.5e-7
+    private double readDouble() {
+        boolean negative = readSign();
+        long mantissa = 0;
+        int exponent = 0;
+        int digits = 0, significantDigits = 0;
+
+        boolean fraction = false;
+        while (index < end) {
+            byte b = in.getByte(index);
+            if (b == '.' && !fraction) {
+                fraction = true;
+            } else if (isDigit(b)) {
+                ++digits;
+                if (significantDigits < MAX_DIGITS) {
+                    mantissa = mantissa * 10 + (b - '0');
+                    if (mantissa != 0) {
+                        ++significantDigits;
+                    }
+                    if (fraction) {
+                        --exponent;
+                    }
+                } else if (!fraction) {
+                    ++exponent; // digits past what fits are dropped, but still scale the integer part
+                }
+            } else {
+                break;
+            }
+            ++index;
+        }
+        if (digits == 0) {
+            throw new CorruptedFrameException("expected number");
+        }
+
+        if (index < end && (in.getByte(index) == 'e' || in.getByte(index) == 'E')) {
+            ++index;
+            boolean negativeExponent = readSign();
+            int explicitExponent = 0;
+            int exponentDigits = 0;
+            while (index < end && isDigit(in.getByte(index))) {
+                explicitExponent = explicitExponent * 10 + (in.getByte(index++) - '0');
+                if (++exponentDigits > 3) {
+                    throw new CorruptedFrameException("exponent too long");
+                }
+            }
+            if (exponentDigits == 0) {
+                throw new CorruptedFrameException("expected exponent");
+            }
+            exponent += negativeExponent ? -explicitExponent : explicitExponent;
+        }
+
+        endField();
+
+        double value = exponent < 0 ? mantissa / Math.pow(10, -exponent) : mantissa * Math.pow(10, exponent);
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            // 0 * Infinity is NaN, for a zero with a large exponent
+            throw new CorruptedFrameException("number out of range");
+        }
+        return negative ? -value : value;
+    }
+
+    private boolean readSign() {
+        if (index < end && in.getByte(index) == '-') {
+            ++index;
+            return true;
+        }
+        return false;
+    }
+
+    // Expect a comma or the end of the command after a field, and skip it
+    private void endField() {
+        if (index < end && in.getByte(index) != ',') {
+            throw new CorruptedFrameException("unexpected character in field");
+        }
+        ++index;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+}
@@ -0,0 +1,43 @@
+package io.github.satoshinm.WebSandboxMC.ws;
+
+import io.github.satoshinm.WebSandboxMC.bridge.WebPlayerBridge;
+import io.netty.channel.Channel;
+
+/**
+ * The latest position a web client sent which has not been applied yet, one per connection reused for every
+ * position update; set from the Netty thread, applied from the main thread
+ */
+class ClientMove {
+
+    private double x, y, z, rx, ry;
+    private boolean pending;
+
+    synchronized void set(double x, double y, double z, double rx, double ry) {
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.rx = rx;
+        this.ry = ry;
+        this.pending = true;
+    }
+
+    // Move the web player to the position if one is pending, returns false if not
+    boolean apply(WebPlayerBridge webPlayerBridge, Channel channel) {
+        double x, y, z, rx, ry;
+        synchronized (this) {
+            if (!pending) {
+                return false;
+            }
+            pending = false;
+
+            x = this.x;
+            y = this.y;
+            z = this.z;
+            rx = this.rx;
+            ry = this.ry;
+        }
+
+        webPlayerBridge.clientMoved(channel, x, y, z, rx, ry);
+        return true;
+    }
+}
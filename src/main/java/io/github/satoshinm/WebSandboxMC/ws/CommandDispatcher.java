@@ -0,0 +1,254 @@
+package io.github.satoshinm.WebSandboxMC.ws;
+
+import io.github.satoshinm.WebSandboxMC.bridge.BlockBridge;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.CorruptedFrameException;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Table of the commands web clients can send, by opcode, each prepared on the Netty thread which received it and
+ * then run where its policy says, so only the steps which change the world wait for the server thread
+ */
+class CommandDispatcher {
+
+    private final WebSocketServerThread webSocketServerThread;
+    private final ClientCommand[] commands = new ClientCommand[128]; // by opcode
+    private final AtomicLong unknown = new AtomicLong();
+
+    CommandDispatcher(final WebSocketServerThread webSocketServerThread) {
+        this.webSocketServerThread = webSocketServerThread;
+
+        // A,username,token[,protocolVersion[,region]] - authenticate and join, spawning the web player's entity
+        register(new ClientCommand('A', ClientCommand.Policy.MAIN_THREAD, false) {
+            @Override
+            Runnable prepare(final ChannelHandlerContext ctx, ByteBuf content, ClientCommandDecoder decoder) {
+                String[] array = text(content).split(",");
+                String username = "";
+                String token = "";
+                int protocolVersion = WebSocketServerThread.PROTOCOL_VERSION_LEGACY;
+                String regionName = "";
+                if (array.length >= 3 && array.length <= 5) {
+                    username = array[1];
+                    token = array[2];
+                }
+                if (array.length >= 4 && array.length <= 5 && !array[3].equals("")) {
+                    protocolVersion = parseInt(array[3]);
+                }
+                if (array.length == 5) {
+                    regionName = array[4];
+                }
+
+                final String finalUsername = username, finalToken = token, finalRegionName = regionName;
+                final int finalProtocolVersion = protocolVersion;
+                webSocketServerThread.startLogin(ctx.channel());
+                return new Runnable() {
+                    @Override
+                    public void run() {
+                        webSocketServerThread.handleNewClient(ctx, finalUsername, finalToken, finalProtocolVersion,
+                                finalRegionName);
+                    }
+                };
+            }
+        });
+
+        // B,x,y,z,type - change a block, decoded by ClientCommandDecoder; only changes allowed by the snapshot go
+        // to the main thread, the others are rejected here
+        register(new ClientCommand('B', ClientCommand.Policy.MAIN_THREAD, true) {
+            @Override
+            Runnable prepare(final ChannelHandlerContext ctx, ByteBuf content, ClientCommandDecoder decoder) {
+                final int x = decoder.blockX;
+                final int y = decoder.blockY;
+                final int z = decoder.blockZ;
+                final int type = decoder.blockType;
+                BlockBridge region = webSocketServerThread.getBlockBridge(ctx.channel());
+                if (!region.checkClientBlockUpdate(ctx.channel(), x, y, z, type)) {
+                    rejected.incrementAndGet();
+                    return null;
+                }
+                return new Runnable() {
+                    @Override
+                    public void run() {
+                        webSocketServerThread.handleBlockUpdate(ctx, x, y, z, type);
+                    }
+                };
+            }
+        });
+
+        // P,x,y,z,rx,ry - move, decoded by ClientCommandDecoder; applied each tick by applyMoves()
+        register(new ClientCommand('P', ClientCommand.Policy.EVENT_LOOP, true) {
+            @Override
+            Runnable prepare(ChannelHandlerContext ctx, ByteBuf content, ClientCommandDecoder decoder) {
+                webSocketServerThread.queueMove(ctx.channel(), decoder.x, decoder.y, decoder.z, decoder.rx, decoder.ry);
+                return null;
+            }
+        });
+
+        // T,text - chat, sent to the other web clients here and to the server chat on the server thread
+        register(new ClientCommand('T', ClientCommand.Policy.MAIN_THREAD, true) {
+            @Override
+            Runnable prepare(ChannelHandlerContext ctx, ByteBuf content, ClientCommandDecoder decoder) {
+                String chat = text(content).substring(2).trim();
+                String theirName = webSocketServerThread.getUsername(ctx.channel());
+
+                final String formattedChat = webSocketServerThread.playersBridge.clientChat(ctx, theirName, chat);
+                if (formattedChat == null) {
+                    return null;
+                }
+
+                return new Runnable() {
+                    @Override
+                    public void run() {
+                        webSocketServerThread.playersBridge.serverChat(formattedChat);
+                    }
+                };
+            }
+        });
+
+        // S,x,y,z,face,text - place a sign; only signs allowed and within the sandbox go to the main thread, the
+        // others are rejected here
+        register(new ClientCommand('S', ClientCommand.Policy.MAIN_THREAD, true) {
+            @Override
+            Runnable prepare(final ChannelHandlerContext ctx, ByteBuf content, ClientCommandDecoder decoder) {
+                String[] array = text(content).split(",", 6);
+                if (array.length != 6) {
+                    throw new CorruptedFrameException("malformed sign text update S");
+                }
+
+                final int x = parseInt(array[1]);
+                final int y = parseInt(array[2]);
+                final int z = parseInt(array[3]);
+                final int face = parseInt(array[4]);
+                final String text = array[5];
+
+                if (webSocketServerThread.isDebug()) {
+                    webSocketServerThread.log(Level.FINEST, "new sign: "+x+","+y+","+z+" face="+face+", text="+text);
+                }
+                BlockBridge region = webSocketServerThread.getBlockBridge(ctx.channel());
+                if (!region.checkClientNewSign(ctx.channel(), x, y, z, face)) {
+                    rejected.incrementAndGet();
+                    return null;
+                }
+
+                return new Runnable() {
+                    @Override
+                    public void run() {
+                        webSocketServerThread.getBlockBridge(ctx.channel()).clientNewSign(ctx, x, y, z, face, text);
+                    }
+                };
+            }
+        });
+
+        // TODO: handle more client messages
+    }
+
+    private void register(ClientCommand command) {
+        commands[command.opcode] = command;
+    }
+
+    // Handle a command from the client, on the Netty thread which received it; opcode is from the decoder, or
+    // ClientCommandDecoder.OTHER if it left the command to be looked up here. Throws CorruptedFrameException if
+    // the command is malformed.
+    void dispatch(final ChannelHandlerContext ctx, ByteBuf content, ClientCommandDecoder decoder, byte opcode) {
+        if (opcode == ClientCommandDecoder.OTHER) {
+            // Every command is its opcode then a comma, even if nothing follows
+            if (content.readableBytes() < 2 || content.getByte(content.readerIndex() + 1) != ',') {
+                throw new CorruptedFrameException("expected opcode and comma");
+            }
+            opcode = content.getByte(content.readerIndex());
+        }
+
+        ClientCommand command = opcode > 0 ? commands[opcode] : null;
+        if (command == null) {
+            unknown.incrementAndGet();
+            webSocketServerThread.log(Level.FINEST, "Ignoring unknown command from "+ctx);
+            return;
+        }
+
+        if (command.requiresLogin && !webSocketServerThread.isLoggedIn(ctx.channel())) {
+            if (command.policy == ClientCommand.Policy.MAIN_THREAD && webSocketServerThread.isLoggingIn(ctx.channel())) {
+                deferUntilLoggedIn(ctx, command, content);
+                return;
+            }
+
+            webSocketServerThread.log(Level.FINEST, "Client tried to send command when not authenticated: "+
+                    command.opcode+" from "+ctx);
+            return;
+        }
+
+        command.received.incrementAndGet();
+        Runnable rest = command.prepare(ctx, content, decoder);
+        if (rest == null) {
+            return;
+        }
+
+        switch (command.policy) {
+            case EVENT_LOOP:
+                rest.run();
+                break;
+            case ASYNC:
+                webSocketServerThread.scheduleAsyncTask(rest);
+                break;
+            case MAIN_THREAD:
+                webSocketServerThread.queueCommand(rest);
+                break;
+        }
+    }
+
+    // Queue a command sent after A but before it ran behind it on the main thread, where it is decoded and
+    // prepared from a copy of the frame once the client has joined; positions are not, the next one replaces them
+    private void deferUntilLoggedIn(final ChannelHandlerContext ctx, final ClientCommand command, ByteBuf content) {
+        final ByteBuf copy = content.copy();
+        webSocketServerThread.queueCommand(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!webSocketServerThread.isLoggedIn(ctx.channel())) {
+                        webSocketServerThread.log(Level.FINEST, "Client failed to join before command: "+
+                                command.opcode+" from "+ctx);
+                        return;
+                    }
+
+                    command.received.incrementAndGet();
+                    ClientCommandDecoder decoder = new ClientCommandDecoder();
+                    decoder.decode(copy);
+                    Runnable rest = command.prepare(ctx, copy, decoder);
+                    if (rest != null) {
+                        rest.run();
+                    }
+                } catch (CorruptedFrameException ex) {
+                    webSocketServerThread.log(Level.FINE, "Ignoring malformed command from " + ctx + ": " +
+                            ex.getMessage());
+                } finally {
+                    copy.release();
+                }
+            }
+        });
+    }
+
+    // Commands received by opcode, since the server started
+    String getStats() {
+        StringBuilder sb = new StringBuilder();
+        for (ClientCommand command : commands) {
+            if (command != null) {
+                sb.append(command.opcode).append(' ').append(command.received.get());
+                if (command.rejected.get() != 0) {
+                    sb.append(" (").append(command.rejected.get()).append(" rejected)");
+                }
+                sb.append(", ");
+            }
+        }
+        sb.append(unknown.get()).append(" unknown");
+        return sb.toString();
+    }
+
+    private static int parseInt(String string) {
+        try {
+            return Integer.parseInt(string);
+        } catch (NumberFormatException ex) {
+            throw new CorruptedFrameException("expected integer: " + string);
+        }
+    }
+}
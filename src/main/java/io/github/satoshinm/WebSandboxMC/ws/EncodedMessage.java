@@ -0,0 +1,54 @@
+package io.github.satoshinm.WebSandboxMC.ws;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * A message encoded at most once for each protocol among the clients it is sent to, each sent a duplicate of the
+ * same buffer. Only used from one thread.
+ */
+class EncodedMessage {
+
+    private final OutboundMessage message;
+    private final Map<ProtocolWriter, ByteBuf> encoded;
+
+    EncodedMessage(OutboundMessage message) {
+        this.message = message;
+        this.encoded = new IdentityHashMap<ProtocolWriter, ByteBuf>();
+    }
+
+    static ByteBuf encode(ProtocolWriter writer, OutboundMessage message) {
+        ByteBuf data = PooledByteBufAllocator.DEFAULT.directBuffer();
+        message.write(writer, data);
+        return data;
+    }
+
+    // Get the message encoded for the writer, the caller is responsible for releasing it; null if the message is
+    // encoded on send instead
+    ByteBuf retain(ProtocolWriter writer) {
+        if (message.isEncodedOnSend()) {
+            return null;
+        }
+
+        if (message.isLine()) {
+            writer = WebSocketServerThread.TEXT_PROTOCOL;
+        }
+
+        ByteBuf data = encoded.get(writer);
+        if (data == null) {
+            data = encode(writer, message);
+            encoded.put(writer, data);
+        }
+        return data.retainedDuplicate();
+    }
+
+    void release() {
+        for (ByteBuf data : encoded.values()) {
+            data.release();
+        }
+        encoded.clear();
+    }
+}
@@ -0,0 +1,53 @@
+package io.github.satoshinm.WebSandboxMC.ws;
+
+/**
+ * Position of an entity in web coordinates, quantized to what is sent to web clients, so moves too small to change
+ * it need not be sent at all
+ */
+public class EntityPosition {
+
+    static final int POSITION_STEPS = 32; // per block
+    static final int ANGLE_STEPS = 256; // per turn
+
+    final int x, y, z; // in steps
+    final int rx, ry; // in steps, 0 to ANGLE_STEPS - 1
+
+    // Coordinates in blocks, angles in radians as Craft uses
+    public EntityPosition(double x, double y, double z, double rx, double ry) {
+        this.x = (int) Math.round(x * POSITION_STEPS);
+        this.y = (int) Math.round(y * POSITION_STEPS);
+        this.z = (int) Math.round(z * POSITION_STEPS);
+        this.rx = quantizeAngle(rx);
+        this.ry = quantizeAngle(ry);
+    }
+
+    private static int quantizeAngle(double radians) {
+        return (int) Math.round(radians * ANGLE_STEPS / (2 * Math.PI)) & (ANGLE_STEPS - 1);
+    }
+
+    double getX() {
+        return (double) x / POSITION_STEPS;
+    }
+
+    double getY() {
+        return (double) y / POSITION_STEPS;
+    }
+
+    double getZ() {
+        return (double) z / POSITION_STEPS;
+    }
+
+    // As float, since the quantized angle has far fewer significant digits than a double would print
+    float getRx() {
+        return (float) (rx * 2 * Math.PI / ANGLE_STEPS);
+    }
+
+    float getRy() {
+        return (float) (ry * 2 * Math.PI / ANGLE_STEPS);
+    }
+
+    // Whether a client already sent the other position would see no difference
+    boolean sameAs(EntityPosition other) {
+        return x == other.x && y == other.y && z == other.z && rx == other.rx && ry == other.ry;
+    }
+}
@@ -0,0 +1,69 @@
+package io.github.satoshinm.WebSandboxMC.ws;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Commands from web clients waiting to run on the main thread, added by any Netty thread without locking and run
+ * once each tick for up to a time budget, instead of scheduling a Bukkit task for each one. Whatever does not fit
+ * in the budget waits for the next tick, in order.
+ */
+class InboundQueue {
+
+    private final Queue<Runnable> commands;
+    private final AtomicInteger depth; // the queue's size() would walk it
+
+    // Counters, updated from the main thread
+    volatile int maxDepth; // most commands waiting at the start of a tick
+    volatile long deferredCommands; // commands left for a later tick, summed over each tick
+    volatile long overBudgetTicks;
+
+    InboundQueue() {
+        this.commands = new ConcurrentLinkedQueue<Runnable>();
+        this.depth = new AtomicInteger();
+    }
+
+    void add(Runnable command) {
+        commands.add(command);
+        depth.incrementAndGet();
+    }
+
+    int depth() {
+        return depth.get();
+    }
+
+    // Run queued commands until none are left or the budget is used up, at least one so they always progress;
+    // called from the main thread, once each tick
+    void drain(long budgetNanos) {
+        int waiting = depth.get();
+        if (waiting == 0) {
+            return;
+        }
+        if (waiting > maxDepth) {
+            maxDepth = waiting;
+        }
+
+        long start = System.nanoTime();
+        Runnable command;
+        while ((command = commands.poll()) != null) {
+            depth.decrementAndGet();
+            try {
+                command.run();
+            } catch (RuntimeException ex) {
+                // Not thrown, so the rest still run
+                ex.printStackTrace();
+            }
+
+            if (System.nanoTime() - start >= budgetNanos) {
+                break;
+            }
+        }
+
+        int left = depth.get();
+        if (left > 0) {
+            ++overBudgetTicks;
+            deferredCommands += left;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package io.github.satoshinm.WebSandboxMC.ws;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+import io.netty.util.collection.LongObjectHashMap;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lines for one client collected during a server tick, then sent together in one frame at the end of the tick,
+ * or held back for longer while the client is not keeping up. Block updates and entity positions superseded by a
+ * later one to the same block or entity are dropped, and refreshes are sent once, after everything else; all
+ * other lines, such as chat, are kept. Entity positions are only encoded when sent, as deltas from the last
+ * position the client was sent if its protocol has them, and not at all if the client would see no difference.
+ * Only touched from the event loop of the client's region.
+ */
+class OutboundBatch {
+
+    private final List<OutboundMessage> messages; // in order, null where superseded
+    private final List<ByteBuf> lines; // encoded messages, null for messages encoded on send
+    private final LongObjectHashMap<Integer> blockUpdates; // index in lines of the latest block update, by packed coordinates
+    private final IntObjectHashMap<Integer> positions; // index in lines of the latest entity position, by entity id
+    private final Map<String, ByteBuf> refreshes; // encoded refresh lines, by line
+    private int readableBytes;
+    private final IntObjectHashMap<EntityPosition> sentPositions; // last position sent of each entity the client has
+
+    // Counters over the life of the connection, read from the main thread by /websandbox list verbose
+    volatile int mergedBlockUpdates;
+    volatile int coalescedPositions;
+    volatile int unchangedPositions; // not sent since the client would see no difference
+    volatile int heldTicks; // ticks the lines were held back since the client could not take more
+    volatile int resyncs;
+
+    OutboundBatch() {
+        this.messages = new ArrayList<OutboundMessage>();
+        this.lines = new ArrayList<ByteBuf>();
+        this.blockUpdates = new LongObjectHashMap<Integer>();
+        this.positions = new IntObjectHashMap<Integer>();
+        this.refreshes = new LinkedHashMap<String, ByteBuf>();
+        this.readableBytes = 0;
+        this.sentPositions = new IntObjectHashMap<EntityPosition>();
+    }
+
+    // Add a message and its encoding, taking ownership of it, or null if it is encoded on send
+    void add(OutboundMessage message, ByteBuf data) {
+        switch (message.kind) {
+            case REFRESH:
+                if (refreshes.containsKey(message.line)) {
+                    data.release();
+                } else {
+                    refreshes.put(message.line, data);
+                    readableBytes += data.readableBytes();
+                }
+                return;
+
+            case BLOCK:
+                if (supersede(blockUpdates.put(message.key, Integer.valueOf(lines.size())))) {
+                    ++mergedBlockUpdates;
+                }
+                break;
+
+            case POSITION:
+                if (supersede(positions.put(message.entityId, Integer.valueOf(lines.size())))) {
+                    ++coalescedPositions;
+                }
+                break;
+
+            case NAME:
+            case DELETE:
+                // The position before naming or deleting an entity allocates it, so must not be dropped for a later one
+                positions.remove(message.entityId);
+                break;
+        }
+
+        messages.add(message);
+        lines.add(data);
+        if (data != null) {
+            readableBytes += data.readableBytes();
+        }
+    }
+
+    // Drop the message at the given index if any, returns true if it was dropped
+    private boolean supersede(Integer index) {
+        if (index == null) {
+            return false;
+        }
+
+        messages.set(index, null);
+        ByteBuf superseded = lines.set(index, null);
+        if (superseded != null) {
+            readableBytes -= superseded.readableBytes();
+            superseded.release();
+        }
+        return true;
+    }
+
+    boolean isEmpty() {
+        return messages.isEmpty() && refreshes.isEmpty();
+    }
+
+    int readableBytes() {
+        return readableBytes;
+    }
+
+    // Take all messages collected so far as one buffer, encoding positions with the client's writer, or null if
+    // there are none, or none left to send once unchanged positions are skipped
+    ByteBuf drain(ByteBufAllocator allocator, ProtocolWriter writer) {
+        if (isEmpty()) {
+            return null;
+        }
+
+        ByteBuf frame = allocator.directBuffer(readableBytes + positions.size() * 16);
+        for (int i = 0; i < messages.size(); ++i) {
+            OutboundMessage message = messages.get(i);
+            if (message == null) {
+                continue;
+            }
+
+            if (message.kind == OutboundMessage.Kind.POSITION) {
+                EntityPosition previous = sentPositions.put(message.entityId, message.position);
+                if (previous == null) {
+                    writer.writePosition(frame, message.entityId, message.position);
+                } else if (previous.sameAs(message.position)) {
+                    ++unchangedPositions;
+                } else {
+                    writer.writePositionDelta(frame, message.entityId, previous, message.position);
+                }
+                continue;
+            }
+
+            if (message.kind == OutboundMessage.Kind.DELETE) {
+                sentPositions.remove(message.entityId);
+            }
+
+            ByteBuf line = lines.get(i);
+            frame.writeBytes(line, line.readerIndex(), line.readableBytes());
+        }
+        for (ByteBuf line : refreshes.values()) {
+            frame.writeBytes(line, line.readerIndex(), line.readableBytes());
+        }
+
+        release();
+        if (frame.readableBytes() == 0) {
+            frame.release();
+            return null;
+        }
+        return frame;
+    }
+
+    // Drop everything collected, for a client which fell too far behind and is sent everything again; the deletes
+    // of entities may be among what was dropped, so every entity the client was sent is deleted instead, and the
+    // next position of each is sent in full
+    void resync(ProtocolWriter writer) {
+        release();
+
+        for (IntObjectMap.PrimitiveEntry<EntityPosition> entry : sentPositions.entries()) {
+            OutboundMessage message = OutboundMessage.delete(entry.key());
+            add(message, EncodedMessage.encode(writer, message));
+        }
+        sentPositions.clear();
+    }
+
+    void release() {
+        for (ByteBuf line : lines) {
+            if (line != null) {
+                line.release();
+            }
+        }
+        for (ByteBuf line : refreshes.values()) {
+            line.release();
+        }
+        messages.clear();
+        lines.clear();
+        blockUpdates.clear();
+        positions.clear();
+        refreshes.clear();
+        readableBytes = 0;
+    }
+}
@@ -0,0 +1,100 @@
+package io.github.satoshinm.WebSandboxMC.ws;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * A message to web clients, kept structured until it is encoded by the ProtocolWriter of each client it is sent to
+ */
+public abstract class OutboundMessage {
+
+    enum Kind { LINE, REFRESH, BLOCK, POSITION, NAME, DELETE }
+
+    final Kind kind;
+    final long key; // what the message is about, for superseding it in a batch: packed coordinates or entity id
+    final String line; // for line and refresh messages, else null
+    final int entityId; // for entity messages, else -1
+    final EntityPosition position; // for position messages, else null
+
+    private OutboundMessage(Kind kind, String line) {
+        this(kind, 0, line, -1, null);
+    }
+
+    private OutboundMessage(Kind kind, long key) {
+        this(kind, key, null, -1, null);
+    }
+
+    private OutboundMessage(Kind kind, int entityId, EntityPosition position) {
+        this(kind, entityId, null, entityId, position);
+    }
+
+    private OutboundMessage(Kind kind, long key, String line, int entityId, EntityPosition position) {
+        this.kind = kind;
+        this.key = key;
+        this.line = line;
+        this.entityId = entityId;
+        this.position = position;
+    }
+
+    // Web coordinates of a block packed into one key, 21 bits each, far more than any sandbox spans
+    private static long packBlock(int x, int y, int z) {
+        return ((long) x & 0x1fffff) << 42 | ((long) y & 0x1fffff) << 21 | ((long) z & 0x1fffff);
+    }
+
+    abstract void write(ProtocolWriter writer, ByteBuf out);
+
+    // Encoded the same whatever the protocol
+    boolean isLine() {
+        return kind == Kind.LINE || kind == Kind.REFRESH;
+    }
+
+    // Encoded separately for each client when its batch is sent, against the last position it was sent
+    boolean isEncodedOnSend() {
+        return kind == Kind.POSITION;
+    }
+
+    public static OutboundMessage line(final String line) {
+        return new OutboundMessage(line.startsWith("R,") ? Kind.REFRESH : Kind.LINE, line) {
+            @Override
+            void write(ProtocolWriter writer, ByteBuf out) {
+                writer.writeLine(out, line);
+            }
+        };
+    }
+
+    public static OutboundMessage block(final int x, final int y, final int z, final int type) {
+        return new OutboundMessage(Kind.BLOCK, packBlock(x, y, z)) {
+            @Override
+            void write(ProtocolWriter writer, ByteBuf out) {
+                writer.writeBlock(out, x, y, z, type);
+            }
+        };
+    }
+
+    // Web coordinates, facing rx, ry in radians as Craft uses
+    public static OutboundMessage position(final int id, double x, double y, double z, double rx, double ry) {
+        return new OutboundMessage(Kind.POSITION, id, new EntityPosition(x, y, z, rx, ry)) {
+            @Override
+            void write(ProtocolWriter writer, ByteBuf out) {
+                writer.writePosition(out, id, position);
+            }
+        };
+    }
+
+    public static OutboundMessage name(final int id, final String name) {
+        return new OutboundMessage(Kind.NAME, id, null) {
+            @Override
+            void write(ProtocolWriter writer, ByteBuf out) {
+                writer.writeName(out, id, name);
+            }
+        };
+    }
+
+    public static OutboundMessage delete(final int id) {
+        return new OutboundMessage(Kind.DELETE, id, null) {
+            @Override
+            void write(ProtocolWriter writer, ByteBuf out) {
+                writer.writeDelete(out, id);
+            }
+        };
+    }
+}
@@ -0,0 +1,26 @@
+package io.github.satoshinm.WebSandboxMC.ws;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Encodes messages to web clients in one of the protocol formats, so every message goes through the same code
+ * path whichever format the client negotiated in its "A," command
+ */
+public interface ProtocolWriter {
+
+    // Any other command, as a line of text
+    void writeLine(ByteBuf out, String line);
+
+    // Block at web coordinates changed to a web block type
+    void writeBlock(ByteBuf out, int x, int y, int z, int type);
+
+    // Entity moved to a position, as the first position sent for it
+    void writePosition(ByteBuf out, int id, EntityPosition position);
+
+    // Entity moved to a position, from the previous position sent for it
+    void writePositionDelta(ByteBuf out, int id, EntityPosition previous, EntityPosition position);
+
+    void writeName(ByteBuf out, int id, String name);
+
+    void writeDelete(ByteBuf out, int id);
+}
@@ -0,0 +1,43 @@
+package io.github.satoshinm.WebSandboxMC.ws;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+
+/**
+ * The original protocol, every message is a newline-terminated line of comma-separated text
+ */
+class TextProtocolWriter implements ProtocolWriter {
+
+    @Override
+    public void writeLine(ByteBuf out, String line) {
+        ByteBufUtil.writeUtf8(out, line);
+        out.writeByte('\n');
+    }
+
+    @Override
+    public void writeBlock(ByteBuf out, int x, int y, int z, int type) {
+        writeLine(out, "B,0,0," + x + "," + y + "," + z + "," + type);
+    }
+
+    @Override
+    public void writePosition(ByteBuf out, int id, EntityPosition position) {
+        writeLine(out, "P," + id + "," + position.getX() + "," + position.getY() + "," + position.getZ() + "," +
+                position.getRx() + "," + position.getRy());
+    }
+
+    // Text has no deltas, always sends the whole position
+    @Override
+    public void writePositionDelta(ByteBuf out, int id, EntityPosition previous, EntityPosition position) {
+        writePosition(out, id, position);
+    }
+
+    @Override
+    public void writeName(ByteBuf out, int id, String name) {
+        writeLine(out, "N," + id + "," + name);
+    }
+
+    @Override
+    public void writeDelete(ByteBuf out, int id) {
+        writeLine(out, "D," + id);
+    }
+}
@@ -17,8 +17,10 @@ package io.github.satoshinm.WebSandboxMC.ws;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.*;
+import io.netty.handler.codec.CorruptedFrameException;
 import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.CharsetUtil;
 import org.bukkit.Bukkit;
 
 import java.util.Set;
@@ -29,6 +31,7 @@ public class WebSocketFrameHandler extends SimpleChannelInboundHandler<WebSocket
     private final WebSocketServerThread webSocketServerThread;
     private final Set<String> ipBans;
     private boolean checkIPBans;
+    private final ClientCommandDecoder decoder = new ClientCommandDecoder();
 
     public WebSocketFrameHandler(WebSocketServerThread webSocketServerThread, boolean checkIPBans) {
         this.webSocketServerThread = webSocketServerThread;
@@ -43,7 +46,9 @@ public class WebSocketFrameHandler extends SimpleChannelInboundHandler<WebSocket
 
     @Override
     public void channelRead0(final ChannelHandlerContext ctx, WebSocketFrame frame) throws Exception {
-        webSocketServerThread.log(Level.FINEST, "channel read, frame="+frame);
+        if (webSocketServerThread.isDebug()) {
+            webSocketServerThread.log(Level.FINEST, "channel read, frame="+frame);
+        }
         // TODO: log at INFO level if this the first data we received from a client (new first connection), to
         // help detect clients connecting but not sending authentication commands (in newPlayer)
 
@@ -57,19 +62,19 @@ public class WebSocketFrameHandler extends SimpleChannelInboundHandler<WebSocket
 
         if (frame instanceof BinaryWebSocketFrame) {
             ByteBuf content = frame.content();
+            if (webSocketServerThread.isDebug()) {
+                webSocketServerThread.log(Level.FINEST, "received "+content.readableBytes()+" bytes: "+
+                        content.toString(CharsetUtil.UTF_8));
+            }
 
-            byte[] bytes = new byte[content.capacity()];
-            content.getBytes(0, bytes);
-
-            final String string = new String(bytes);
-            webSocketServerThread.log(Level.FINEST, "received "+content.capacity()+" bytes: "+string);
-
-            this.webSocketServerThread.scheduleSyncTask(new Runnable() {
-                @Override
-                public void run() {
-                    webSocketServerThread.handle(string, ctx);
-                }
-            });
+            // Malformed commands are dropped here, before they ever reach the server thread
+            try {
+                byte opcode = decoder.decode(content);
+                webSocketServerThread.commandDispatcher.dispatch(ctx, content, decoder, opcode);
+            } catch (CorruptedFrameException ex) {
+                webSocketServerThread.log(Level.FINE, "Ignoring malformed command from " +
+                        webSocketServerThread.getRemoteIPandPort(ctx.channel()) + ": " + ex.getMessage());
+            }
         } else {
             String message = "unsupported frame type: " + frame.getClass().getName();
             throw new UnsupportedOperationException(message);
@@ -82,9 +87,22 @@ public class WebSocketFrameHandler extends SimpleChannelInboundHandler<WebSocket
         ctx.close();
     }
 
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable()) {
+            webSocketServerThread.resumeWorldStream(ctx.channel());
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
     @Override
     public void channelInactive(final ChannelHandlerContext ctx) {
-        webSocketServerThread.scheduleSyncTask(new Runnable() {
+        // Release any world or lines not yet sent
+        webSocketServerThread.resumeWorldStream(ctx.channel());
+        webSocketServerThread.releaseOutbound(ctx.channel());
+
+        // After any commands it sent before disconnecting
+        webSocketServerThread.queueCommand(new Runnable() {
             @Override
             public void run() {
                 webSocketServerThread.webPlayerBridge.clientDisconnected(ctx.channel());
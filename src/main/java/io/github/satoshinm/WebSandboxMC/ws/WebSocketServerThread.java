@@ -17,16 +17,27 @@ package io.github.satoshinm.WebSandboxMC.ws;
 
 import io.github.satoshinm.WebSandboxMC.Settings;
 import io.github.satoshinm.WebSandboxMC.bridge.BlockBridge;
+import io.github.satoshinm.WebSandboxMC.bridge.ChunkFilter;
 import io.github.satoshinm.WebSandboxMC.bridge.WebPlayerBridge;
 import io.github.satoshinm.WebSandboxMC.bridge.PlayersBridge;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelId;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.ChannelMatcher;
+import io.netty.channel.group.ChannelMatchers;
 import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
@@ -36,9 +47,14 @@ import io.netty.handler.logging.LoggingHandler;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
 import io.netty.handler.ssl.util.SelfSignedCertificate;
+import io.netty.util.AttributeKey;
 import io.netty.util.concurrent.ImmediateEventExecutor;
 
 import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 
 /**
@@ -67,7 +83,30 @@ public final class WebSocketServerThread extends Thread {
 
     private ChannelGroup allUsersGroup;
 
-    public BlockBridge blockBridge;
+    // Protocol version advertised by the client in its "A," command, older clients send none
+    public static final int PROTOCOL_VERSION_LEGACY = 0;
+    public static final int PROTOCOL_VERSION_PALETTE = 1; // understands the palette world payload format
+    public static final int PROTOCOL_VERSION_BINARY = 2; // also understands binary messages, see BinaryProtocolWriter
+    static final ProtocolWriter TEXT_PROTOCOL = new TextProtocolWriter();
+    static final ProtocolWriter BINARY_PROTOCOL = new BinaryProtocolWriter();
+    private static final AttributeKey<Integer> PROTOCOL_VERSION = AttributeKey.valueOf("protocolVersion");
+    private static final AttributeKey<WorldStream> WORLD_STREAM = AttributeKey.valueOf("worldStream");
+    private static final AttributeKey<BlockBridge> REGION = AttributeKey.valueOf("region");
+    private static final AttributeKey<OutboundBatch> OUTBOUND_BATCH = AttributeKey.valueOf("outboundBatch");
+    private static final AttributeKey<ClientMove> PENDING_MOVE = AttributeKey.valueOf("pendingMove");
+    private static final AttributeKey<Long> MOVE_APPLIED_AT = AttributeKey.valueOf("moveAppliedAt"); // System.nanoTime()
+    private static final AttributeKey<String> USERNAME = AttributeKey.valueOf("username");
+    private static final AttributeKey<Boolean> LOGGING_IN = AttributeKey.valueOf("loggingIn");
+    private final InboundQueue inboundQueue = new InboundQueue();
+    final CommandDispatcher commandDispatcher = new CommandDispatcher(this);
+
+    private boolean useEpoll;
+    private EventLoopGroup bossGroup;
+    private EventLoopGroup workerGroup;
+
+    public BlockBridge blockBridge; // the default region
+    public Map<String, BlockBridge> blockBridges; // all regions, by name
+    public ChunkFilter chunkFilter; // chunks overlapping any region
     public PlayersBridge playersBridge;
     public WebPlayerBridge webPlayerBridge;
     private Settings settings;
@@ -77,22 +116,77 @@ public final class WebSocketServerThread extends Thread {
         this.SSL = false; // TODO: support ssl?
 
         this.blockBridge = null;
+        this.blockBridges = new LinkedHashMap<String, BlockBridge>();
         this.playersBridge = null;
         this.webPlayerBridge = null;
 
         this.allUsersGroup = new DefaultChannelGroup(ImmediateEventExecutor.INSTANCE);
 
         this.settings = settings;
+
+        // Created up front so each region can be assigned an event loop
+        this.useEpoll = chooseEpoll(settings.transport);
+        this.workerGroup = newEventLoopGroup(settings.workerThreads);
+        this.bossGroup = settings.shareEventLoop ? this.workerGroup : newEventLoopGroup(settings.bossThreads);
+    }
+
+    private boolean chooseEpoll(String transport) {
+        if ("nio".equals(transport)) {
+            return false;
+        }
+
+        if (Epoll.isAvailable()) {
+            return true;
+        }
+
+        if ("epoll".equals(transport)) {
+            log(Level.WARNING, "Native epoll transport unavailable, falling back to nio: " + Epoll.unavailabilityCause());
+        } else {
+            log(Level.FINEST, "Native epoll transport unavailable, using nio: " + Epoll.unavailabilityCause());
+        }
+        return false;
+    }
+
+    // 0 threads for Netty's default
+    private EventLoopGroup newEventLoopGroup(int threads) {
+        return useEpoll ? new EpollEventLoopGroup(threads) : new NioEventLoopGroup(threads);
+    }
+
+    public void addBlockBridge(BlockBridge blockBridge) {
+        if (this.blockBridge == null) {
+            this.blockBridge = blockBridge;
+        }
+        this.blockBridges.put(blockBridge.name, blockBridge);
+        this.chunkFilter = new ChunkFilter(this.blockBridges.values());
+    }
+
+    // Event loop for a region to send its web clients their lines from, regions are spread across all event loops
+    public EventLoop nextEventLoop() {
+        return workerGroup.next();
+    }
+
+    // Region the web client joined, or null if it has not yet
+    public BlockBridge getBlockBridge(Channel channel) {
+        return channel.attr(REGION).get();
     }
 
     public void log(Level level, String message) {
         settings.log(level, message);
     }
 
+    // Whether FINEST messages are logged, to skip building them otherwise
+    public boolean isDebug() {
+        return settings.debug;
+    }
+
     public void scheduleSyncTask(Runnable runnable) {
         settings.scheduleSyncTask(runnable);
     }
 
+    public void scheduleAsyncTask(Runnable runnable) {
+        settings.scheduleAsyncTask(runnable);
+    }
+
     @Override
     public void run() {
         try {
@@ -105,18 +199,37 @@ public final class WebSocketServerThread extends Thread {
                 sslCtx = null;
             }
 
-            EventLoopGroup bossGroup = new NioEventLoopGroup(1);
-            EventLoopGroup workerGroup = new NioEventLoopGroup();
             try {
                 ServerBootstrap b = new ServerBootstrap();
                 b.group(bossGroup, workerGroup)
-                        .channel(NioServerSocketChannel.class)
+                        .channel(useEpoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class)
+                        .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(
+                                settings.writeBufferLowWaterMark, settings.writeBufferHighWaterMark))
+                        .childOption(ChannelOption.TCP_NODELAY, settings.tcpNoDelay)
                         .handler(settings.nettyLogInfo ? new LoggingHandler(LogLevel.INFO) : new LoggingHandler())
                         .childHandler(new WebSocketServerInitializer(sslCtx, this,
                                 settings.pluginDataFolder, settings.checkIPBans));
+                if (settings.sendBufferSize > 0) {
+                    b.childOption(ChannelOption.SO_SNDBUF, settings.sendBufferSize);
+                }
+                if (settings.receiveBufferSize > 0) {
+                    b.childOption(ChannelOption.SO_RCVBUF, settings.receiveBufferSize);
+                }
+
+                // With SO_REUSEPORT each acceptor binds its own socket, on the next boss event loop
+                int acceptors = 1;
+                if (settings.reusePort && useEpoll && !settings.shareEventLoop) {
+                    b.option(EpollChannelOption.SO_REUSEPORT, true);
+                    acceptors = Math.max(1, settings.bossThreads);
+                }
 
                 Channel ch = b.bind(PORT).sync().channel();
+                for (int i = 1; i < acceptors; ++i) {
+                    b.bind(PORT).sync();
+                }
 
+                log(Level.INFO, "Serving web clients with " + (useEpoll ? "epoll" : "nio") +
+                        (acceptors > 1 ? ", " + acceptors + " acceptors" : ""));
                 log(Level.INFO, "Open your web browser and navigate to " +
                         (SSL ? "https" : "http") + "://127.0.0.1:" + PORT + "/" +
                         " or " + settings.publicURL);
@@ -133,36 +246,470 @@ public final class WebSocketServerThread extends Thread {
         }
     }
 
+    // Encode a line once into a pooled buffer, to be sent to any number of clients as retained duplicates
+    static ByteBuf encodeLine(String message) {
+        ByteBuf data = PooledByteBufAllocator.DEFAULT.directBuffer(ByteBufUtil.utf8MaxBytes(message) + 1);
+        ByteBufUtil.writeUtf8(data, message);
+        data.writeByte('\n');
+        return data;
+    }
+
+    static BinaryWebSocketFrame lineFrame(String message) {
+        return new BinaryWebSocketFrame(encodeLine(message));
+    }
+
     public void sendLine(Channel channel, String message) {
-        channel.writeAndFlush(new BinaryWebSocketFrame(Unpooled.copiedBuffer((message + "\n").getBytes())));
+        sendMessage(channel, OutboundMessage.line(message));
+    }
+
+    // Messages to a client in a region are all sent from the region's event loop, so they stay in order, and are
+    // batched until the end of the server tick; before joining a region they are sent immediately
+    public void sendMessage(final Channel channel, final OutboundMessage message) {
+        BlockBridge region = getBlockBridge(channel);
+        if (region == null) {
+            writeData(channel, EncodedMessage.encode(getProtocolWriter(channel), message));
+            return;
+        }
+
+        if (region.eventLoop.inEventLoop()) {
+            batchMessage(channel, message);
+            return;
+        }
+
+        region.eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                batchMessage(channel, message);
+            }
+        });
     }
 
-    public void sendBinary(Channel channel, ByteBuf data) {
+    // Binary data is sent immediately, after any lines batched before it
+    public void sendBinary(final Channel channel, final ByteBuf data) {
+        BlockBridge region = getBlockBridge(channel);
+        if (region == null) {
+            writeData(channel, data);
+            return;
+        }
+
+        region.eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                flushBatch(channel);
+                writeData(channel, data);
+            }
+        });
+    }
+
+    private void batchMessage(Channel channel, OutboundMessage message) {
+        ByteBuf data = message.isEncodedOnSend() ? null : EncodedMessage.encode(getProtocolWriter(channel), message);
+        batchMessage(channel, message, data);
+    }
+
+    // Add a message and its encoding to the client's batch, taking ownership of it, called on the region's event loop
+    private void batchMessage(Channel channel, OutboundMessage message, ByteBuf data) {
+        if (!channel.isActive()) {
+            if (data != null) {
+                data.release();
+            }
+            return;
+        }
+
+        OutboundBatch batch = channel.attr(OUTBOUND_BATCH).get();
+        if (batch == null) {
+            batch = new OutboundBatch();
+            channel.attr(OUTBOUND_BATCH).set(batch);
+        }
+        batch.add(message, data);
+    }
+
+    // Send everything batched for the client as one frame, called on the region's event loop
+    private void flushBatch(Channel channel) {
+        OutboundBatch batch = channel.attr(OUTBOUND_BATCH).get();
+        if (batch == null || batch.isEmpty()) {
+            return;
+        }
+
+        ByteBuf frame = batch.drain(channel.alloc(), getProtocolWriter(channel));
+        if (frame != null) {
+            writeData(channel, frame);
+        }
+    }
+
+    // Queue a command from a client to run on the main thread, called from the Netty thread which received it
+    void queueCommand(Runnable command) {
+        inboundQueue.add(command);
+    }
+
+    // Run the commands queued from clients, once each server tick for up to the configured time
+    public void runCommands() {
+        inboundQueue.drain(settings.commandBudgetMillis * 1000000L);
+    }
+
+    public String getCommandStats() {
+        return commandDispatcher.getStats();
+    }
+
+    public String getInboundStats() {
+        return inboundQueue.depth() + " commands queued, at most " + inboundQueue.maxDepth + ", " +
+                inboundQueue.deferredCommands + " deferred over " + inboundQueue.overBudgetTicks + " ticks";
+    }
+
+    // Keep the latest position update (P command) from a client, replacing any not yet applied, called from the
+    // Netty thread which received it; clients send one every frame they draw, many more than are worth applying
+    void queueMove(Channel channel, double x, double y, double z, double rx, double ry) {
+        ClientMove move = channel.attr(PENDING_MOVE).get();
+        if (move == null) {
+            move = new ClientMove();
+            channel.attr(PENDING_MOVE).set(move); // only set from this channel's thread
+        }
+        move.set(x, y, z, rx, ry);
+    }
+
+    // Apply the latest position of each client which sent one, once each server tick and at most the configured
+    // moves per second, so moving web players cost the same however fast their clients draw
+    public void applyMoves() {
+        long now = System.nanoTime();
+        long interval = settings.movesPerSecond > 0 ? 1000000000L / settings.movesPerSecond : 0;
+
+        for (Channel channel : allUsersGroup) {
+            Long appliedAt = channel.attr(MOVE_APPLIED_AT).get();
+            if (appliedAt != null && now - appliedAt < interval) {
+                continue;
+            }
+
+            ClientMove move = channel.attr(PENDING_MOVE).get();
+            if (move != null && move.apply(webPlayerBridge, channel)) {
+                channel.attr(MOVE_APPLIED_AT).set(now);
+            }
+        }
+    }
+
+    // Send all batched lines, once at the end of each server tick
+    public void flushOutbound() {
+        for (BlockBridge region : blockBridges.values()) {
+            final ChannelGroup channelGroup = region.channelGroup;
+            region.eventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (Channel channel : channelGroup) {
+                        flushBatchAtTickEnd(channel);
+                    }
+                }
+            });
+        }
+    }
+
+    // Send the client's batch unless it cannot take more or the world is still streaming to it, then keep
+    // collecting into the batch where superseded lines are dropped, until it either catches up or falls too far behind
+    private void flushBatchAtTickEnd(final Channel channel) {
+        OutboundBatch batch = channel.attr(OUTBOUND_BATCH).get();
+        if (batch == null || batch.isEmpty()) {
+            return;
+        }
+
+        // While the world is streaming, lines wait in the batch until it is written, see worldStreamWritten()
+        WorldStream worldStream = channel.attr(WORLD_STREAM).get();
+        if (worldStream == null && channel.isWritable()) {
+            ByteBuf frame = batch.drain(channel.alloc(), getProtocolWriter(channel));
+            if (frame != null) {
+                writeData(channel, frame);
+            }
+            return;
+        }
+
+        ++batch.heldTicks;
+        int heldBytes = batch.readableBytes() + (worldStream != null ? worldStream.deferredBytes() : 0);
+        if (heldBytes <= settings.slowClientLimit) {
+            return;
+        }
+
+        if ("disconnect".equals(settings.slowClientAction)) {
+            batch.release();
+            log(Level.INFO, "Disconnecting web client falling behind: " + getRemoteIPandPort(channel));
+            channel.close();
+            return;
+        }
+
+        batch.resync(getProtocolWriter(channel));
+        if (worldStream != null) {
+            // Sent again from the start
+            releaseWorldStream(channel, worldStream);
+        }
+
+        ++batch.resyncs;
+        log(Level.FINEST, "Resyncing web client falling behind: " + getRemoteIPandPort(channel));
+        scheduleSyncTask(new Runnable() {
+            @Override
+            public void run() {
+                resyncClient(channel);
+            }
+        });
+    }
+
+    // Send everything again to a client whose updates were dropped for falling too far behind
+    private void resyncClient(Channel channel) {
+        if (!channel.isActive()) {
+            return;
+        }
+
+        BlockBridge region = getBlockBridge(channel);
+        region.clientViews.resetClient(channel);
+        region.resendWorld(channel);
+        playersBridge.sendPlayers(channel);
+    }
+
+    // Counters of lines dropped or held back for a client not keeping up, or null if none
+    public String getOutboundStats(Channel channel) {
+        OutboundBatch batch = channel.attr(OUTBOUND_BATCH).get();
+        if (batch == null) {
+            return null;
+        }
+
+        return batch.mergedBlockUpdates + " block updates merged, " +
+                batch.coalescedPositions + " positions coalesced, " +
+                batch.unchangedPositions + " unchanged positions skipped, " +
+                batch.heldTicks + " ticks held back, " +
+                batch.resyncs + " resyncs";
+    }
+
+    // Drop any lines still batched for a client which disconnected
+    void releaseOutbound(final Channel channel) {
+        BlockBridge region = getBlockBridge(channel);
+        if (region == null) {
+            return;
+        }
+
+        region.eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                OutboundBatch batch = channel.attr(OUTBOUND_BATCH).getAndSet(null);
+                if (batch != null) {
+                    batch.release();
+                }
+            }
+        });
+    }
+
+    // Write an encoded line or binary data immediately, taking ownership of it
+    private void writeData(Channel channel, ByteBuf data) {
+        if (deferToWorldStream(channel, data)) {
+            return;
+        }
+
         channel.writeAndFlush(new BinaryWebSocketFrame(data));
     }
 
+    // Send to all web clients, in every region
     public void broadcastLine(String message) {
-        allUsersGroup.writeAndFlush(new BinaryWebSocketFrame(Unpooled.copiedBuffer((message + "\n").getBytes())));
+        broadcastLineExcept((ChannelId) null, message);
     }
 
     public void broadcastLineExcept(ChannelId excludeChannelId, String message) {
-        for (Channel channel: allUsersGroup) {
-            if (channel.id().equals(excludeChannelId)) {
-                continue;
+        ChannelMatcher matcher = excluding(excludeChannelId);
+        ByteBuf data = encodeLine(message);
+        try {
+            for (BlockBridge region : blockBridges.values()) {
+                broadcastData(region, matcher, message, data.retainedDuplicate());
+            }
+        } finally {
+            data.release();
+        }
+    }
+
+    // Send to all web clients in one region
+    public void broadcastLine(BlockBridge region, String message) {
+        broadcastData(region, ChannelMatchers.all(), message, encodeLine(message));
+    }
+
+    public void broadcastLineExcept(BlockBridge region, ChannelId excludeChannelId, String message) {
+        broadcastData(region, excluding(excludeChannelId), message, encodeLine(message));
+    }
+
+    private static ChannelMatcher excluding(final ChannelId excludeChannelId) {
+        if (excludeChannelId == null) {
+            return ChannelMatchers.all();
+        }
+
+        return new ChannelMatcher() {
+            @Override
+            public boolean matches(Channel channel) {
+                return !channel.id().equals(excludeChannelId);
+            }
+        };
+    }
+
+    // Fanned out to the region's clients from its event loop, instead of from the caller's thread; the line is
+    // encoded once by the caller and each client is sent a duplicate of the same buffer
+    private void broadcastData(BlockBridge region, final ChannelMatcher matcher, String line, final ByteBuf data) {
+        final ChannelGroup channelGroup = region.channelGroup;
+        final OutboundMessage message = OutboundMessage.line(line);
+        region.eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (Channel channel : channelGroup) {
+                        if (matcher.matches(channel)) {
+                            batchMessage(channel, message, data.retainedDuplicate());
+                        }
+                    }
+                } finally {
+                    data.release();
+                }
+            }
+        });
+    }
+
+    // Send to some of the web clients in one region, fanned out from its event loop like the broadcasts above,
+    // encoded once for each protocol the clients use
+    public void multicastMessage(BlockBridge region, List<Channel> channels, OutboundMessage message) {
+        multicastMessages(region, Collections.singletonList(channels), Collections.singletonList(message));
+    }
+
+    // Send each message to its own clients in one region, all in one go on its event loop
+    public void multicastMessages(BlockBridge region, final List<List<Channel>> channelLists,
+                                  final List<OutboundMessage> messages) {
+        if (messages.isEmpty() || (messages.size() == 1 && channelLists.get(0).isEmpty())) {
+            return;
+        }
+
+        region.eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < messages.size(); ++i) {
+                    OutboundMessage message = messages.get(i);
+                    EncodedMessage encodedMessage = new EncodedMessage(message);
+                    try {
+                        for (Channel channel : channelLists.get(i)) {
+                            batchMessage(channel, message, encodedMessage.retain(getProtocolWriter(channel)));
+                        }
+                    } finally {
+                        encodedMessage.release();
+                    }
+                }
+            }
+        });
+    }
+
+    // Send the initial world to a client progressively, in the given order of lines (String) and binary data (ByteBuf)
+    public void streamWorld(final Channel channel, List<Object> messages) {
+        final WorldStream worldStream = new WorldStream(this, channel, messages);
+
+        // In order with the lines sent to the client before it, which go through the region's event loop
+        getBlockBridge(channel).eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Lines sent before the world, such as its texture pack, go first
+                flushBatch(channel);
+                channel.attr(WORLD_STREAM).set(worldStream);
+
+                channel.eventLoop().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        worldStream.resume();
+                    }
+                });
             }
+        });
+    }
+
+    private boolean deferToWorldStream(Channel channel, Object message) {
+        WorldStream worldStream = channel.attr(WORLD_STREAM).get();
+        return worldStream != null && worldStream.defer(message);
+    }
+
+    void worldStreamFinished(Channel channel, WorldStream worldStream) {
+        channel.attr(WORLD_STREAM).compareAndSet(worldStream, null);
+    }
 
-            channel.writeAndFlush(new BinaryWebSocketFrame(Unpooled.copiedBuffer((message + "\n").getBytes())));
+    // Send the lines batched while the world was streaming, called on the channel's event loop once it is written
+    void worldStreamWritten(final Channel channel) {
+        BlockBridge region = getBlockBridge(channel);
+        if (region == null) {
+            return;
         }
+
+        region.eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                flushBatch(channel);
+            }
+        });
+    }
+
+    // Drop the rest of the world being streamed to the client, from any thread
+    private void releaseWorldStream(Channel channel, final WorldStream worldStream) {
+        channel.eventLoop().execute(new Runnable() {
+            @Override
+            public void run() {
+                worldStream.release();
+            }
+        });
+    }
+
+    // Called on the event loop when the client can take more data, or has disconnected
+    void resumeWorldStream(Channel channel) {
+        WorldStream worldStream = channel.attr(WORLD_STREAM).get();
+        if (worldStream != null) {
+            worldStream.resume();
+        }
+    }
+
+    public int getProtocolVersion(Channel channel) {
+        Integer protocolVersion = channel.attr(PROTOCOL_VERSION).get();
+        return protocolVersion != null ? protocolVersion : PROTOCOL_VERSION_LEGACY;
+    }
+
+    // Whether the client joined, safe to call from any thread
+    boolean isLoggedIn(Channel channel) {
+        return allUsersGroup.contains(channel);
+    }
+
+    // Mark the client as joining once its A command is queued, called from the Netty thread which received it
+    void startLogin(Channel channel) {
+        channel.attr(LOGGING_IN).set(Boolean.TRUE);
+    }
+
+    // Whether the client sent A but it has not run yet, or it failed, safe to call from any thread
+    boolean isLoggingIn(Channel channel) {
+        return channel.attr(LOGGING_IN).get() != null && !isLoggedIn(channel);
+    }
+
+    // Name of the web player, from any thread, or null before it joined
+    String getUsername(Channel channel) {
+        return channel.attr(USERNAME).get();
     }
 
-    public void handleNewClient(ChannelHandlerContext ctx, String username, String token) {
+    ProtocolWriter getProtocolWriter(Channel channel) {
+        return getProtocolVersion(channel) >= PROTOCOL_VERSION_BINARY ? BINARY_PROTOCOL : TEXT_PROTOCOL;
+    }
+
+    public void handleNewClient(ChannelHandlerContext ctx, String username, String token, int protocolVersion,
+                                String regionName) {
         Channel channel = ctx.channel();
+        if (isLoggedIn(channel)) {
+            // Would leave its entity and membership in the region it joined first
+            log(Level.FINEST, "Ignoring second authentication from "+getRemoteIPandPort(channel));
+            return;
+        }
+        channel.attr(PROTOCOL_VERSION).set(protocolVersion);
+
+        BlockBridge region = blockBridges.get(regionName);
+        if (region == null) {
+            if (!regionName.equals("")) {
+                sendLine(channel, "T,No such region " + regionName + ", joining " + blockBridge.name);
+            }
+            region = blockBridge;
+        }
 
-        if (!webPlayerBridge.newPlayer(channel, username, token)) {
+        if (!webPlayerBridge.newPlayer(channel, region, username, token)) {
             channel.close();
             return;
         }
 
+        channel.attr(USERNAME).set(webPlayerBridge.channelId2name.get(channel.id()));
+        channel.attr(REGION).set(region);
+        region.channelGroup.add(channel);
         allUsersGroup.add(channel);
 
 
@@ -174,11 +721,11 @@ T,Welcome to Craft!
 T,Type "/help" for a list of commands.
 N,1,guest1
 */
-        sendLine(channel, "B,0,0,0,30,0,1"); // floating grass block at (0,30,0) in chunk (0,0)
+        sendMessage(channel, OutboundMessage.block(0, 30, 0, 1)); // floating grass block at (0,30,0) in chunk (0,0)
         sendLine(channel, "K,0,0,0"); // update chunk key (0,0) to 0
         sendLine(channel, "R,0,0"); // refresh chunk (0,0)
 
-        blockBridge.sendWorld(channel);
+        region.sendWorld(channel);
         playersBridge.sendPlayers(channel);
     }
 
@@ -195,72 +742,20 @@ N,1,guest1
         return getRemoteIP(channel) + ":" + getRemotePort(channel);
     }
 
-    // Handle a command from the client
-    public void handle(String string, ChannelHandlerContext ctx) {
-        if (string.startsWith("A,")) {
-            String[] array = string.trim().split(",");
-            String username = "";
-            String token = "";
-            if (array.length == 3) {
-                username = array[1];
-                token = array[2];
-            }
-            handleNewClient(ctx, username, token);
-            return;
+    // Handle a block update (B command) from the client, decoded by ClientCommandDecoder
+    void handleBlockUpdate(ChannelHandlerContext ctx, int x, int y, int z, int type) {
+        if (isDebug()) {
+            this.log(Level.FINEST, "client block update: "+x+","+y+","+z+","+type);
         }
+        getBlockBridge(ctx.channel()).queueClientBlockUpdate(ctx, x, y, z, type);
+    }
 
-        if (!allUsersGroup.contains(ctx.channel())) {
-            // Commands below this point require a successfully logged-in user
-            this.log(Level.FINEST, "Client tried to send command when not authenticated: "+string+" from "+ctx);
-            return;
-        }
-
-        if (string.startsWith("B,")) {
-            this.log(Level.FINEST, "client block update: "+string);
-            String[] array = string.trim().split(",");
-            if (array.length != 5) {
-                throw new RuntimeException("malformed block update B, command from client: "+string);
-            }
-            int x = Integer.parseInt(array[1]);
-            int y = Integer.parseInt(array[2]);
-            int z = Integer.parseInt(array[3]);
-            int type = Integer.parseInt(array[4]);
-
-            blockBridge.clientBlockUpdate(ctx, x, y, z, type);
-        } else if (string.startsWith("T,")) {
-            String chat = string.substring(2).trim();
-            String theirName = this.webPlayerBridge.channelId2name.get(ctx.channel().id());
-
-            playersBridge.clientChat(ctx, theirName, chat);
-        } else if (string.startsWith("P,")) {
-            String[] array = string.trim().split(",");
-            if (array.length != 6) {
-                throw new RuntimeException("malformed client position update P: "+string);
-            }
-            double x = Double.parseDouble(array[1]);
-            double y = Double.parseDouble(array[2]);
-            double z = Double.parseDouble(array[3]);
-            double rx = Double.parseDouble(array[4]);
-            double ry = Double.parseDouble(array[5]);
-
-            webPlayerBridge.clientMoved(ctx.channel(), x, y, z, rx, ry);
-        } else if (string.startsWith("S,")) {
-            String[] array = string.trim().split(",", 6);
-            if (array.length != 6) {
-                throw new RuntimeException("malformed sign text update S: "+string);
-            }
-
-            int x = Integer.parseInt(array[1]);
-            int y = Integer.parseInt(array[2]);
-            int z = Integer.parseInt(array[3]);
-            int face = Integer.parseInt(array[4]);
-            String text = array[5];
-
-            this.log(Level.FINEST, "new sign: "+x+","+y+","+z+" face="+face+", text="+text);
-
-            this.blockBridge.clientNewSign(ctx, x, y, z, face, text);
+    // Apply the block changes queued from clients in every region, once each server tick for up to the
+    // configured time
+    public void applyBlockEdits() {
+        long deadline = System.nanoTime() + settings.blockEditBudgetMillis * 1000000L;
+        for (BlockBridge region : blockBridges.values()) {
+            region.applyClientBlockUpdates(deadline);
         }
-
-        // TODO: handle more client messages
     }
 }
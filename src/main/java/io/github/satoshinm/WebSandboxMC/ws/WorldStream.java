@@ -0,0 +1,118 @@
+package io.github.satoshinm.WebSandboxMC.ws;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * The initial world being sent to one client, written from the channel's event loop only while the channel is
+ * writable, so no more than the write buffer's worth of world data is ever queued per connection. Lines and data
+ * sent to the client in the meantime are held back until the whole world is written, so they apply on top of it;
+ * lines are kept in the client's OutboundBatch, binary data here.
+ */
+class WorldStream {
+
+    private final WebSocketServerThread webSocketServerThread;
+    private final Channel channel;
+    private final Queue<Object> messages; // lines (String) or binary data (ByteBuf), only touched on the event loop
+    private final List<Object> deferredMessages; // lines or binary data sent while streaming, in order
+    private volatile int deferredBytes; // of the binary data, counted against the slow client limit
+    private boolean finished;
+
+    WorldStream(WebSocketServerThread webSocketServerThread, Channel channel, List<Object> messages) {
+        this.webSocketServerThread = webSocketServerThread;
+        this.channel = channel;
+        this.messages = new ArrayDeque<Object>(messages);
+        this.deferredMessages = new ArrayList<Object>();
+        this.finished = false;
+    }
+
+    // Write as much as the channel will take, called on the event loop, again whenever it becomes writable
+    void resume() {
+        if (!channel.isActive()) {
+            release();
+            return;
+        }
+
+        boolean wroteBinary = false;
+        while (channel.isWritable()) {
+            Object message = messages.poll();
+            if (message == null) {
+                finish();
+                return;
+            }
+
+            write(message);
+            wroteBinary |= message instanceof ByteBuf;
+        }
+
+        // Paused until writable again, meanwhile let the client show the blocks it has so far
+        if (wroteBinary) {
+            channel.write(WebSocketServerThread.lineFrame("R,0,0"));
+        }
+        channel.flush();
+    }
+
+    private void write(Object message) {
+        if (message instanceof ByteBuf) {
+            channel.write(new BinaryWebSocketFrame((ByteBuf) message));
+        } else {
+            channel.write(WebSocketServerThread.lineFrame((String) message));
+        }
+    }
+
+    // Hold back a line (String) or binary data (ByteBuf) until the world is sent, returns false if it already was
+    // and the message can be sent now
+    synchronized boolean defer(Object message) {
+        if (finished) {
+            return false;
+        }
+
+        deferredMessages.add(message);
+        if (message instanceof ByteBuf) {
+            deferredBytes += ((ByteBuf) message).readableBytes();
+        }
+        return true;
+    }
+
+    int deferredBytes() {
+        return deferredBytes;
+    }
+
+    private synchronized void finish() {
+        finished = true;
+
+        for (Object message : deferredMessages) {
+            write(message);
+        }
+        deferredMessages.clear();
+        deferredBytes = 0;
+        channel.flush();
+
+        webSocketServerThread.worldStreamFinished(channel, this);
+        webSocketServerThread.worldStreamWritten(channel);
+    }
+
+    // Drop everything not yet written, when the client disconnects
+    synchronized void release() {
+        finished = true;
+
+        Object message;
+        while ((message = messages.poll()) != null) {
+            ReferenceCountUtil.release(message);
+        }
+        for (Object deferredMessage : deferredMessages) {
+            ReferenceCountUtil.release(deferredMessage);
+        }
+        deferredMessages.clear();
+        deferredBytes = 0;
+
+        webSocketServerThread.worldStreamFinished(channel, this);
+    }
+}